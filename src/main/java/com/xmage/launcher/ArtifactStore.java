@@ -0,0 +1,302 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A content-addressed store of installed files.  Every file is kept once, as objects/&lt;first 2 hex digits&gt;/&lt;sha256&gt;,
+ * and the libraries and executables of installs are hard links to those blobs (or copies where the file system has no
+ * hard links).  Other files, like configuration and databases, may be written to in place, which would change the blob
+ * too, so they are always copied.  A ref file per installed version, named &lt;xmage folder&gt;-&lt;version&gt;, lists
+ * the blobs it uses, so that a file shipped again by a later version, another branch or a rollback can be installed
+ * without downloading it, and blobs no kept version uses can be dropped.  Refs use the {@link FileManifest} format, so
+ * a stored version can be installed again like any other file manifest.
+ */
+public class ArtifactStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArtifactStore.class);
+    private static final Pattern REF_NAME = Pattern.compile("[^A-Za-z0-9._-]");
+    // files only ever replaced whole, never written to in place, which can share their blob
+    private static final Pattern LINKED = Pattern.compile(".*\\.(jar|zip|dll|so|dylib|jnilib|exe)", Pattern.CASE_INSENSITIVE);
+    // the version in a ref name, after the xmage folder
+    private static final Pattern REF_VERSION = Pattern.compile("-\\d.*$");
+
+    private final File objects;
+    private final File refs;
+
+    public ArtifactStore(File directory) {
+        this.objects = new File(directory, "objects");
+        this.refs = new File(directory, "refs");
+    }
+
+    public File getBlob(String sha256) {
+        sha256 = sha256.toLowerCase();
+        return new File(new File(objects, sha256.substring(0, 2)), sha256);
+    }
+
+    /**
+     * Installs the blob with hash sha256 as file, replacing it if it exists.  The result is checked against the hash,
+     * since a program writing to an installed file in place also changes the blob; such a blob is dropped.
+     *
+     * @return false if the store has no (intact) blob with that hash
+     */
+    public boolean link(String sha256, File file) throws IOException {
+        File blob = getBlob(sha256);
+        if (!blob.isFile()) {
+            return false;
+        }
+        file.getParentFile().mkdirs();
+        Files.deleteIfExists(file.toPath());
+        linkOrCopy(blob, file, isLinked(file));
+        if (!sha256.equalsIgnoreCase(Hashing.sha256(file))) {
+            logger.warn("Blob " + sha256 + " has been modified, dropping it");
+            Files.delete(file.toPath());
+            Files.deleteIfExists(blob.toPath());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds all files below root, except those whose name matches keep, to the store and records them as ref.  The
+     * blobs become hard links to the installed files, so this costs no copying where hard links are supported.
+     *
+     * @param hashes the hashes of files already known, by path relative to root with / as separator; may be null
+     */
+    public void add(File root, String ref, Pattern keep, final Map<String, String> hashes, int threads) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        list(root, "", keep, paths);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<String> blobs = new ArrayList<String>();
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final String path : paths) {
+                final File file = new File(root, path);
+                results.add(workers.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        String hash = hashes == null ? null : hashes.get(path);
+                        if (hash == null) {
+                            hash = Hashing.sha256(file);
+                        }
+                        store(file, hash);
+                        return hash;
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                blobs.add(result.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Adding " + root + " to the store interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        writeRef(ref, root, paths, blobs);
+    }
+
+    /**
+     * @return the file listing the files of ref, or null if the store doesn't have it
+     */
+    public File getRef(String ref) {
+        File file = refFile(ref);
+        return file.isFile() ? file : null;
+    }
+
+    private File refFile(String ref) {
+        return new File(refs, REF_NAME.matcher(ref).replaceAll("_"));
+    }
+
+    private void list(File dir, String prefix, Pattern keep, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (keep != null && keep.matcher(file.getName()).matches()) {
+                continue;
+            }
+            if (file.isDirectory()) {
+                list(file, prefix + file.getName() + "/", keep, paths);
+            } else if (file.isFile()) {
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Makes the blob for hash a hard link to file (or a copy of it if file may be written to), unless it already is
+     * one.
+     */
+    private void store(File file, String hash) throws IOException {
+        File blob = getBlob(hash);
+        boolean linked = isLinked(file);
+        // a copied blob can't have changed since, but one still linked to a file that is written to is replaced
+        if (blob.isFile() && linked == Files.isSameFile(blob.toPath(), file.toPath())) {
+            return;
+        }
+        blob.getParentFile().mkdirs();
+        File temp = new File(blob.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        Files.deleteIfExists(temp.toPath());
+        linkOrCopy(file, temp, linked);
+        // the installed file has just been verified, so it replaces a blob that may have been written to since
+        Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return true if the installed file is never written to in place, so it can share its blob
+     */
+    private static boolean isLinked(File file) {
+        return LINKED.matcher(file.getName()).matches();
+    }
+
+    /**
+     * Creates to as a hard link to from if link is set and the file system allows, and as a copy otherwise.
+     */
+    private static void linkOrCopy(File from, File to, boolean link) throws IOException {
+        if (link) {
+            try {
+                Files.createLink(to.toPath(), from.toPath());
+                return;
+            } catch (UnsupportedOperationException ex) {
+                // no hard links on this file system
+            } catch (IOException ex) {
+                // e.g. on another file system
+            }
+        }
+        Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeRef(String ref, File root, List<String> paths, List<String> blobs) throws IOException {
+        refs.mkdirs();
+        File file = refFile(ref);
+        File temp = new File(refs, file.getName() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (int i = 0; i < paths.size(); i++) {
+                out.write(blobs.get(i) + " " + new File(root, paths.get(i)).length() + " " + paths.get(i) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Forgets all but the keep most recently added refs, and then the oldest ones as long as the blobs of the remaining
+     * refs take more than budget bytes.  The newest ref of each xmage folder is always kept, since it is what is
+     * installed there.  Removes the blobs none of the remaining refs use.
+     */
+    public void gc(int keep, long budget) {
+        File[] files = refs.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f2.lastModified(), f1.lastModified());
+            }
+        });
+        Set<String> folders = new HashSet<String>();
+        Set<String> used = new HashSet<String>();
+        long size = 0;
+        int kept = 0;
+        boolean full = false;
+        for (int i = 0; i < files.length; i++) {
+            boolean newest = folders.add(REF_VERSION.matcher(files[i].getName()).replaceFirst(""));
+            if (newest || !full && kept < keep) {
+                Set<String> blobs;
+                try {
+                    blobs = readRef(files[i]);
+                } catch (IOException ex) {
+                    // without knowing what the ref uses nothing can be removed safely
+                    logger.error("Can't read " + files[i].getAbsolutePath(), ex);
+                    return;
+                }
+                long added = 0;
+                for (String blob : blobs) {
+                    if (!used.contains(blob)) {
+                        added += getBlob(blob).length();
+                    }
+                }
+                if (newest || size + added <= budget) {
+                    used.addAll(blobs);
+                    size += added;
+                    kept++;
+                    continue;
+                }
+                full = true; // over budget, drop this and all older refs but the newest of other folders
+            }
+            logger.info("Dropping " + files[i].getName() + " from the store");
+            if (!files[i].delete()) {
+                logger.error("Can't remove " + files[i].getAbsolutePath());
+            }
+        }
+        int removed = 0;
+        File[] shards = objects.listFiles();
+        if (shards != null) {
+            for (File shard : shards) {
+                File[] blobs = shard.listFiles();
+                if (blobs == null) {
+                    continue;
+                }
+                for (File blob : blobs) {
+                    if (!used.contains(blob.getName())) {
+                        if (blob.delete()) {
+                            removed++;
+                        } else {
+                            logger.error("Can't remove " + blob.getAbsolutePath());
+                        }
+                    }
+                }
+                shard.delete(); // only succeeds once it is empty
+            }
+        }
+        logger.info("Removed " + removed + " unused blobs from the store, " + size / (1024 * 1024) + " MB in use");
+    }
+
+    private static Set<String> readRef(File file) throws IOException {
+        Set<String> blobs = new HashSet<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    blobs.add(line.split("\\s", 2)[0]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return blobs;
+    }
+
+}
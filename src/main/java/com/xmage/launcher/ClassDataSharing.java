@@ -0,0 +1,214 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a class data sharing archive per program, version and Java runtime, so that the classes of XMage are mapped
+ * from the archive at startup instead of being loaded and verified one by one.  The first start records the classes
+ * used: from Java 13 the JVM writes the archive itself when it exits, on Java 10 to 12 it writes a class list that the
+ * archive is dumped from in the background.  Java 8 only shares the classes of the runtime itself (application class
+ * data sharing is a commercial feature there), so nothing is added for it.  An archive is built again as soon as the
+ * program, its jars or the runtime change.
+ */
+public class ClassDataSharing {
+
+    private static final Logger logger = LoggerFactory.getLogger(ClassDataSharing.class);
+    private static final Pattern NAME_CHARS = Pattern.compile("[^A-Za-z0-9._-]");
+    private static final Pattern MAJOR = Pattern.compile("^(?:1\\.)?(\\d+)");
+    private static final String ARCHIVE = ".jsa";
+    private static final String CLASS_LIST = ".classlist";
+    private static final Set<String> dumping = Collections.synchronizedSet(new HashSet<String>());
+
+    private final File folder;
+
+    /**
+     * @param folder where the archives are kept
+     */
+    public ClassDataSharing(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @return the version of the runtime in javaHome, read from its release file, or null if it has none
+     */
+    public static String getJavaVersion(File javaHome) {
+        return getReleaseProperty(javaHome, "JAVA_VERSION");
+    }
+
+    /**
+     * @return the value of name in the release file of the runtime in javaHome, or null if it isn't there
+     */
+    public static String getReleaseProperty(File javaHome, String name) {
+        File release = new File(javaHome, "release");
+        if (!release.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        try {
+            InputStream in = new FileInputStream(release);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Can't read " + release.getAbsolutePath(), ex);
+            return null;
+        }
+        String value = props.getProperty(name);
+        return value == null ? null : value.replace("\"", "").trim();
+    }
+
+    /**
+     * @return the feature release of a Java version string, e.g. 8 for 1.8.0_141 and 17 for 17.0.2, or 0 if unknown
+     */
+    public static int getMajorVersion(String javaVersion) {
+        Matcher matcher = MAJOR.matcher(javaVersion == null ? "" : javaVersion);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : 0;
+    }
+
+    /**
+     * Returns the JVM options for starting program with the runtime in javaHome: the archive if there is an up to date
+     * one, otherwise those recording what goes into it.
+     *
+     * @param program the name of what is started, e.g. xmage-mage-client; its archives replace each other
+     * @param version the version of program
+     * @param classPath the jar, or the folder of jars, the program is started from
+     * @return the options, empty if the runtime can't share application classes
+     */
+    public List<String> getOptions(File javaHome, String javaVersion, String program, String version, File classPath) {
+        int major = getMajorVersion(javaVersion);
+        if (major < 10) {
+            return Collections.emptyList();
+        }
+        String prefix = NAME_CHARS.matcher(program).replaceAll("_") + "-";
+        String name = prefix + NAME_CHARS.matcher(version + "-" + javaVersion + "-"
+                + Integer.toHexString(javaHome.getAbsolutePath().hashCode())).replaceAll("_");
+        File archive = new File(folder, name + ARCHIVE);
+        File classList = new File(folder, name + CLASS_LIST);
+        if (archive.isFile() && archive.lastModified() < newest(classPath)) {
+            logger.info(archive.getName() + " is older than the classes of " + program + ", building it again");
+            archive.delete();
+            classList.delete();
+        }
+        List<String> options = new ArrayList<String>();
+        if (archive.isFile()) {
+            if (major == 10) {
+                options.add("-XX:+UseAppCDS");
+            }
+            options.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+            options.add("-Xshare:auto"); // start without the archive rather than fail if it doesn't fit
+            logger.info("Starting " + program + " with " + archive.getName());
+            return options;
+        }
+        removeOthers(prefix, name);
+        folder.mkdirs();
+        if (major >= 13) {
+            options.add("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath());
+        } else if (classList.isFile()) {
+            if (dumping.add(archive.getName())) {
+                dump(javaHome, major, classList, archive, classPath);
+            }
+        } else {
+            if (major == 10) {
+                options.add("-XX:+UseAppCDS");
+            }
+            options.add("-XX:DumpLoadedClassList=" + classList.getAbsolutePath());
+        }
+        logger.info("Recording the classes of " + program + " for " + archive.getName());
+        return options;
+    }
+
+    /**
+     * @return the classpath argument for classPath
+     */
+    public static String toClassPath(File classPath) {
+        return classPath.isDirectory() ? new File(classPath, "*").getAbsolutePath() : classPath.getAbsolutePath();
+    }
+
+    private static long newest(File classPath) {
+        if (!classPath.isDirectory()) {
+            return classPath.lastModified();
+        }
+        long newest = 0;
+        File[] jars = classPath.listFiles();
+        if (jars != null) {
+            for (File jar : jars) {
+                newest = Math.max(newest, jar.lastModified());
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Removes the archives of other versions of program or other runtimes, which are never used again.
+     */
+    private void removeOthers(String prefix, String name) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && !file.getName().startsWith(name + ".")) {
+                logger.info("Removing the outdated " + file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Builds archive from the recorded classList in the background, for the next start to use.
+     */
+    private static void dump(File javaHome, int major, File classList, final File archive, File classPath) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(javaHome, "bin/java").getAbsolutePath());
+        command.add("-Xshare:dump");
+        if (major == 10) {
+            command.add("-XX:+UseAppCDS");
+        }
+        command.add("-XX:SharedClassListFile=" + classList.getAbsolutePath());
+        command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+        command.add("-cp");
+        command.add(toClassPath(classPath));
+        final ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(archive.getPath() + ".log"));
+        Thread dumper = new Thread("CDS dump " + archive.getName()) {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    int exitValue = pb.start().waitFor();
+                    if (exitValue != 0) {
+                        logger.error("Dumping " + archive.getName() + " failed with exit value " + exitValue);
+                        archive.delete();
+                    } else {
+                        logger.info("Dumped " + archive.getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+                    }
+                } catch (IOException ex) {
+                    logger.error("Can't dump " + archive.getName(), ex);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    dumping.remove(archive.getName());
+                }
+            }
+        };
+        dumper.setDaemon(true);
+        dumper.start();
+    }
+
+}
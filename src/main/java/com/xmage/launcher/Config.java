@@ -8,6 +8,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -21,29 +22,54 @@ import com.xmage.launcher.Utilities.OS;
 public class Config {
 
     private static final String PROPERTIES_FILE = "installed.properties";
+    private static final String MIRROR_SCORE_PREFIX = "xmage.mirror.";
     private static final String VERSION_FILE = "/version.properties";
     private static final org.slf4j.Logger logger = LoggerFactory.getLogger(Config.class);
     private static final Properties props = new Properties();
     private static final String DEFAULT_URL = "http://xmage.de/xmage";
     private static final String BETA_URL = "http://rkfg.me/xmage";
-    private static final String DEFAULT_CLIENT_JAVA_OPTS = "-Xms256m -Xmx512m -XX:MaxPermSize=384m -XX:+UseConcMarkSweepGC -XX:+CMSClassUnloadingEnabled";
-    private static final String DEFAULT_SERVER_JAVA_OPTS = "-Xms256M -Xmx1G -XX:MaxPermSize=384m";
+    // the fixed options of earlier versions, replaced by those picked by JvmOptions
+    private static final String OLD_CLIENT_JAVA_OPTS = "-Xms256m -Xmx512m -XX:MaxPermSize=384m -XX:+UseConcMarkSweepGC -XX:+CMSClassUnloadingEnabled";
+    private static final String OLD_SERVER_JAVA_OPTS = "-Xms256M -Xmx1G -XX:MaxPermSize=384m";
+    // the ranges of the numbers the settings offer, which hand edited properties are kept in too
+    public static final int MIN_DOWNLOAD_CONNECTIONS = 1;
+    public static final int MAX_DOWNLOAD_CONNECTIONS = 16;
+    public static final int MIN_XMAGE_VERSIONS_KEPT = 1;
+    public static final int MAX_XMAGE_VERSIONS_KEPT = 10;
+    public static final int MIN_STORE_LIMIT = 100;
+    public static final int MAX_STORE_LIMIT = 100000;
+    public static final int MAX_JAVA_RUNTIMES_KEPT = 10;
 
     private static String version = "";
     private static String installedJavaVersion = "";
-    private static String installedXMageVersion = "";
+    private static String installedJavaRuntime = "";
+    private static String clientJavaRuntime = "";
+    private static String serverJavaRuntime = "";
+    private static int javaRuntimesKept = 2;
+    private static String discoveredJavaHome = "";
+    private static Map<String, String> installedXMageVersions = new HashMap<String, String>();
     private static String homeURL = "";
     private static boolean useTorrent = false;
     private static int torrentUpRate = 0;
     private static int torrentDownRate = 0;
+    private static int downloadConnections = 4;
+    private static boolean extractWhileDownloading = false;
+    private static int xmageVersionsKept = 3;
+    private static int storeLimit = 2048;
+    private static InstallProfile installProfile = InstallProfile.FULL;
+    private static boolean useClassDataSharing = true;
+    private static boolean buildJavaRuntime = false;
     private static String clientJavaOpts = "";
     private static String serverJavaOpts = "";
+    private static JvmOptions.Preset clientPreset = JvmOptions.Preset.CLIENT;
+    private static JvmOptions.Preset serverPreset = JvmOptions.Preset.SERVER;
     private static int guiSize = 0;
     private static boolean showClientConsole = true;
     private static boolean showServerConsole = true;
-    private static XMageBranch[] xMageBranches = new XMageBranch[] { new XMageBranch("Stable", DEFAULT_URL), new XMageBranch("Beta", BETA_URL),
-            new XMageBranch("Custom", null) };
+    private static XMageBranch[] xMageBranches = new XMageBranch[] { new XMageBranch("Stable", DEFAULT_URL, "xmage"),
+            new XMageBranch("Beta", BETA_URL, "xmage-beta"), new XMageBranch("Custom", null, "xmage-custom") };
     private static Map<String, XMageBranch> branchMap = new HashMap<String, XMageBranch>();
+    private static Map<String, Double> mirrorScores = new HashMap<String, Double>();
 
     static {
         try {
@@ -58,9 +84,21 @@ public class Config {
             props.load(in);
             in.close();
             installedJavaVersion = props.getProperty("java.version", "");
-            installedXMageVersion = props.getProperty("xmage.version", "");
-            clientJavaOpts = props.getProperty("xmage.client.javaopts", DEFAULT_CLIENT_JAVA_OPTS);
-            serverJavaOpts = props.getProperty("xmage.server.javaopts", DEFAULT_SERVER_JAVA_OPTS);
+            installedJavaRuntime = props.getProperty("java.runtime", "");
+            clientJavaRuntime = props.getProperty("xmage.client.java", "");
+            serverJavaRuntime = props.getProperty("xmage.server.java", "");
+            javaRuntimesKept = Integer.parseInt(props.getProperty("java.runtimes.kept", "2"));
+            discoveredJavaHome = props.getProperty("java.discovered", "");
+            clientJavaOpts = props.getProperty("xmage.client.javaopts", "");
+            serverJavaOpts = props.getProperty("xmage.server.javaopts", "");
+            if (clientJavaOpts.equals(OLD_CLIENT_JAVA_OPTS)) {
+                clientJavaOpts = "";
+            }
+            if (serverJavaOpts.equals(OLD_SERVER_JAVA_OPTS)) {
+                serverJavaOpts = "";
+            }
+            clientPreset = parsePreset(props.getProperty("xmage.client.preset"), JvmOptions.Preset.CLIENT);
+            serverPreset = parsePreset(props.getProperty("xmage.server.preset"), JvmOptions.Preset.SERVER);
             int screenResolution = getScreenDPI();
             logger.info("Detected screen DPI: " + screenResolution);
             guiSize = Integer.parseInt(props.getProperty("xmage.launcher.guisize", String.valueOf(screenResolution / 6)));
@@ -68,12 +106,32 @@ public class Config {
             useTorrent = Boolean.parseBoolean(props.getProperty("xmage.torrent.use", "False"));
             torrentUpRate = Integer.parseInt(props.getProperty("xmage.torrent.uprate", "50"));
             torrentDownRate = Integer.parseInt(props.getProperty("xmage.torrent.downrate", "0"));
+            downloadConnections = Integer.parseInt(props.getProperty("xmage.download.connections", "4"));
+            extractWhileDownloading = Boolean.parseBoolean(props.getProperty("xmage.download.extract", "False"));
+            xmageVersionsKept = Integer.parseInt(props.getProperty("xmage.store.versions", "3"));
+            storeLimit = Integer.parseInt(props.getProperty("xmage.store.limit", "2048"));
+            try {
+                installProfile = InstallProfile.valueOf(props.getProperty("xmage.install.profile", InstallProfile.FULL.name()));
+            } catch (IllegalArgumentException ex) {
+                logger.warn("Unknown install profile, installing everything");
+            }
+            useClassDataSharing = Boolean.parseBoolean(props.getProperty("xmage.cds", "True"));
+            buildJavaRuntime = Boolean.parseBoolean(props.getProperty("xmage.java.jlink", "False"));
             showClientConsole = Boolean.parseBoolean(props.getProperty("xmage.client.console", "True"));
             showServerConsole = Boolean.parseBoolean(props.getProperty("xmage.server.console", "True"));
+            for (String key : props.stringPropertyNames()) {
+                if (key.startsWith(MIRROR_SCORE_PREFIX)) {
+                    mirrorScores.put(key.substring(MIRROR_SCORE_PREFIX.length()), Double.parseDouble(props.getProperty(key)));
+                }
+            }
             for (XMageBranch xMageBranch : xMageBranches) {
                 if (xMageBranch.url != null) {
                     branchMap.put(xMageBranch.url, xMageBranch);
                 }
+                installedXMageVersions.put(xMageBranch.folder, props.getProperty(getVersionKey(xMageBranch), ""));
+            }
+            if (!props.containsKey(getVersionKey(xMageBranches[1]))) {
+                migrateBranchInstall();
             }
         } catch (IOException ex) {
             logger.error("Error: ", ex);
@@ -84,6 +142,51 @@ public class Config {
         return installedJavaVersion;
     }
 
+    /**
+     * @return the key in the {@link JavaStore} of the Java installed last, the one used if not chosen otherwise
+     */
+    public static String getInstalledJavaRuntime() {
+        return installedJavaRuntime;
+    }
+
+    /**
+     * @return the key of the installed Java chosen for the client, or "" for the one installed last
+     */
+    public static String getClientJavaRuntime() {
+        return clientJavaRuntime;
+    }
+
+    /**
+     * @return the key of the installed Java chosen for the server, or "" for the one installed last
+     */
+    public static String getServerJavaRuntime() {
+        return serverJavaRuntime;
+    }
+
+    /**
+     * @return how many installed Java runtimes nothing uses any more are kept to go back to
+     */
+    public static int getJavaRuntimesKept() {
+        return clamp(javaRuntimesKept, 0, MAX_JAVA_RUNTIMES_KEPT);
+    }
+
+    /**
+     * @return the Java installed on this computer, outside of the launcher, that XMage is started with if neither the
+     * system nor the local Java will do
+     */
+    public static String getDiscoveredJavaHome() {
+        return discoveredJavaHome;
+    }
+
+    private static JvmOptions.Preset parsePreset(String name, JvmOptions.Preset preset) {
+        try {
+            return name == null ? preset : JvmOptions.Preset.valueOf(name);
+        } catch (IllegalArgumentException ex) {
+            logger.warn("Unknown JVM options preset " + name);
+            return preset;
+        }
+    }
+
     private static int getScreenDPI() {
         int result = 0;
         if (Utilities.getOS() == OS.NIX) { // on Linux the default method always return 96 or 93
@@ -116,8 +219,52 @@ public class Config {
         return Toolkit.getDefaultToolkit().getScreenResolution();
     }
 
+    /**
+     * @return the XMage version installed for the selected branch
+     */
     public static String getInstalledXMageVersion() {
-        return installedXMageVersion;
+        return installedXMageVersions.get(getXMageFolder());
+    }
+
+    /**
+     * @return the folder in the install path the selected branch is installed in
+     */
+    public static String getXMageFolder() {
+        return getXMageBranchByUrl(homeURL).folder;
+    }
+
+    /**
+     * Moves the install that launchers before per branch folders kept in xmage, whatever the branch, to the folder of
+     * the branch it was installed from, which is the one still selected.  Stable stays where it is.
+     */
+    private static void migrateBranchInstall() {
+        XMageBranch branch = getXMageBranchByUrl(homeURL);
+        String legacyVersion = installedXMageVersions.get(xMageBranches[0].folder);
+        if (branch == xMageBranches[0] || legacyVersion.isEmpty()) {
+            return;
+        }
+        File from = new File(getInstallPath(), xMageBranches[0].folder);
+        File to = new File(getInstallPath(), branch.folder);
+        if (from.isDirectory() && !to.exists()) {
+            try {
+                Files.move(from.toPath(), to.toPath());
+                installedXMageVersions.put(branch.folder, legacyVersion);
+                logger.info("Moved the " + branch.title + " install " + legacyVersion + " from " + from.getAbsolutePath() + " to "
+                        + to.getAbsolutePath());
+            } catch (IOException ex) {
+                // xmage keeps a build Stable doesn't know, so both install afresh rather than update the wrong one
+                logger.error("Can't move " + from.getAbsolutePath() + " to " + to.getAbsolutePath(), ex);
+            }
+        }
+        installedXMageVersions.put(xMageBranches[0].folder, "");
+        saveProperties();
+    }
+
+    /**
+     * Stable keeps the key used before branches had their own installs.
+     */
+    private static String getVersionKey(XMageBranch branch) {
+        return branch == xMageBranches[0] ? "xmage.version" : "xmage.version." + branch.folder;
     }
 
     public static String getXMageHome() {
@@ -128,14 +275,28 @@ public class Config {
         return version;
     }
 
+    /**
+     * @return the options the user added to those picked for the client
+     */
     public static String getClientJavaOpts() {
         return clientJavaOpts;
     }
 
+    /**
+     * @return the options the user added to those picked for the server
+     */
     public static String getServerJavaOpts() {
         return serverJavaOpts;
     }
 
+    public static JvmOptions.Preset getClientPreset() {
+        return clientPreset;
+    }
+
+    public static JvmOptions.Preset getServerPreset() {
+        return serverPreset;
+    }
+
     public static boolean isUseTorrent() {
         return useTorrent;
     }
@@ -152,6 +313,61 @@ public class Config {
         return torrentDownRate;
     }
 
+    public static int getDownloadConnections() {
+        return clamp(downloadConnections, MIN_DOWNLOAD_CONNECTIONS, MAX_DOWNLOAD_CONNECTIONS);
+    }
+
+    public static boolean isExtractWhileDownloading() {
+        return extractWhileDownloading;
+    }
+
+    /**
+     * @return how many installed XMage versions are kept for rolling back to
+     */
+    public static int getXMageVersionsKept() {
+        return clamp(xmageVersionsKept, MIN_XMAGE_VERSIONS_KEPT, MAX_XMAGE_VERSIONS_KEPT);
+    }
+
+    /**
+     * @return the disk space in MB the kept XMage versions may take
+     */
+    public static int getStoreLimit() {
+        return clamp(storeLimit, MIN_STORE_LIMIT, MAX_STORE_LIMIT);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @return true if Java is built with jlink from a JDK on this computer instead of downloaded, when there is one
+     */
+    public static boolean isBuildJavaRuntime() {
+        return buildJavaRuntime;
+    }
+
+    /**
+     * @return true if the XMage client and server are started with a class data sharing archive where Java supports it
+     */
+    public static boolean isUseClassDataSharing() {
+        return useClassDataSharing;
+    }
+
+    /**
+     * @return which parts of XMage are installed
+     */
+    public static InstallProfile getInstallProfile() {
+        return installProfile;
+    }
+
+    /**
+     * @return the smoothed throughput in bytes/s of a download mirror, or 0 if it is unknown
+     */
+    public static synchronized double getMirrorScore(String url) {
+        Double score = mirrorScores.get(url);
+        return score == null ? 0 : score;
+    }
+
     public static boolean isShowClientConsole() {
         return showClientConsole;
     }
@@ -164,8 +380,24 @@ public class Config {
         installedJavaVersion = version;
     }
 
+    public static void setInstalledJavaRuntime(String key) {
+        installedJavaRuntime = key;
+    }
+
+    public static void setClientJavaRuntime(String key) {
+        clientJavaRuntime = key;
+    }
+
+    public static void setServerJavaRuntime(String key) {
+        serverJavaRuntime = key;
+    }
+
+    public static void setDiscoveredJavaHome(String javaHome) {
+        discoveredJavaHome = javaHome;
+    }
+
     public static void setInstalledXMageVersion(String version) {
-        installedXMageVersion = version;
+        installedXMageVersions.put(getXMageFolder(), version);
     }
 
     public static void setClientJavaOpts(String opts) {
@@ -176,6 +408,14 @@ public class Config {
         serverJavaOpts = opts;
     }
 
+    public static void setClientPreset(JvmOptions.Preset preset) {
+        clientPreset = preset;
+    }
+
+    public static void setServerPreset(JvmOptions.Preset preset) {
+        serverPreset = preset;
+    }
+
     public static void setXMageHome(String url) {
         homeURL = url;
     }
@@ -196,6 +436,38 @@ public class Config {
         torrentDownRate = rate;
     }
 
+    public static void setDownloadConnections(int connections) {
+        downloadConnections = connections;
+    }
+
+    public static void setExtractWhileDownloading(boolean extract) {
+        extractWhileDownloading = extract;
+    }
+
+    public static void setXMageVersionsKept(int versions) {
+        xmageVersionsKept = versions;
+    }
+
+    public static void setStoreLimit(int limit) {
+        storeLimit = limit;
+    }
+
+    public static void setInstallProfile(InstallProfile profile) {
+        installProfile = profile;
+    }
+
+    public static void setUseClassDataSharing(boolean use) {
+        useClassDataSharing = use;
+    }
+
+    public static void setBuildJavaRuntime(boolean build) {
+        buildJavaRuntime = build;
+    }
+
+    public static synchronized void setMirrorScore(String url, double score) {
+        mirrorScores.put(url, score);
+    }
+
     public static void setShowClientConsole(boolean show) {
         showClientConsole = show;
     }
@@ -204,14 +476,27 @@ public class Config {
         showServerConsole = show;
     }
 
-    public static void saveProperties() {
+    /**
+     * Writes the settings to the properties file.  Called from the event dispatch thread as well as from download
+     * threads, so the writes are serialized.
+     */
+    public static synchronized void saveProperties() {
         try {
             File properties = new File(getInstallPath(), PROPERTIES_FILE);
             FileOutputStream out = new FileOutputStream(properties);
             props.setProperty("java.version", installedJavaVersion);
-            props.setProperty("xmage.version", installedXMageVersion);
+            props.setProperty("java.runtime", installedJavaRuntime);
+            props.setProperty("xmage.client.java", clientJavaRuntime);
+            props.setProperty("xmage.server.java", serverJavaRuntime);
+            props.setProperty("java.runtimes.kept", Integer.toString(javaRuntimesKept));
+            props.setProperty("java.discovered", discoveredJavaHome);
+            for (XMageBranch xMageBranch : xMageBranches) {
+                props.setProperty(getVersionKey(xMageBranch), installedXMageVersions.get(xMageBranch.folder));
+            }
             props.setProperty("xmage.client.javaopts", clientJavaOpts);
             props.setProperty("xmage.server.javaopts", serverJavaOpts);
+            props.setProperty("xmage.client.preset", clientPreset.name());
+            props.setProperty("xmage.server.preset", serverPreset.name());
             props.setProperty("xmage.launcher.guisize", Integer.toString(guiSize));
             props.setProperty("xmage.home", homeURL);
             props.setProperty("xmage.client.console", Boolean.toString(showClientConsole));
@@ -219,6 +504,16 @@ public class Config {
             props.setProperty("xmage.torrent.use", Boolean.toString(useTorrent));
             props.setProperty("xmage.torrent.uprate", Integer.toString(torrentUpRate));
             props.setProperty("xmage.torrent.downrate", Integer.toString(torrentDownRate));
+            props.setProperty("xmage.download.connections", Integer.toString(downloadConnections));
+            props.setProperty("xmage.download.extract", Boolean.toString(extractWhileDownloading));
+            props.setProperty("xmage.store.versions", Integer.toString(xmageVersionsKept));
+            props.setProperty("xmage.store.limit", Integer.toString(storeLimit));
+            props.setProperty("xmage.install.profile", installProfile.name());
+            props.setProperty("xmage.cds", Boolean.toString(useClassDataSharing));
+            props.setProperty("xmage.java.jlink", Boolean.toString(buildJavaRuntime));
+            for (Map.Entry<String, Double> entry : mirrorScores.entrySet()) {
+                props.setProperty(MIRROR_SCORE_PREFIX + entry.getKey(), Long.toString(Math.round(entry.getValue())));
+            }
             props.store(out, "---XMage Properties---");
             out.close();
         } catch (IOException ex) {
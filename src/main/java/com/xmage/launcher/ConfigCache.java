@@ -0,0 +1,172 @@
+package com.xmage.launcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last config.json read from the home server on disk, together with its ETag and Last-Modified date.
+ * The server is only asked if its copy changed, and the cached copy is used when the server can't be reached.
+ */
+public class ConfigCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfigCache.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CACHE_FILE = "config.json.cache";
+    private static final String META_SUFFIX = ".properties";
+    private static final int TIMEOUT = 10000;
+    private static final int MAX_REDIRECTS = 5;
+
+    private final File cacheFile;
+    private final File metaFile;
+    private boolean offline;
+
+    public ConfigCache(File directory) {
+        this.cacheFile = new File(directory, CACHE_FILE);
+        this.metaFile = new File(directory, CACHE_FILE + META_SUFFIX);
+    }
+
+    /**
+     * Reads the config from requested, revalidating the cached copy if there is one.
+     *
+     * @return the text of the config
+     * @throws IOException if the server can't be reached and there is no cached copy for requested
+     */
+    public String fetch(URL requested) throws IOException {
+        offline = false;
+        URL url = requested;
+        Properties meta = loadMeta();
+        boolean cached = requested.toString().equals(meta.getProperty("url")) && cacheFile.isFile();
+        try {
+            HttpURLConnection conn = null;
+            for (int redirects = 0; ; redirects++) {
+                conn = (HttpURLConnection) url.openConnection();
+                conn.setConnectTimeout(TIMEOUT);
+                conn.setReadTimeout(TIMEOUT);
+                conn.setUseCaches(false);
+                if (cached) {
+                    setValidator(conn, "If-None-Match", meta.getProperty("etag"));
+                    setValidator(conn, "If-Modified-Since", meta.getProperty("modified"));
+                }
+                int status = conn.getResponseCode();
+                if (redirects < MAX_REDIRECTS && (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER)) {
+                    url = new URL(url, conn.getHeaderField("Location"));
+                    conn.disconnect();
+                } else {
+                    break;
+                }
+            }
+            try {
+                int status = conn.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached) {
+                    logger.info("Config not modified, using cached copy");
+                    return readCache();
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Server returned " + status + " for " + url);
+                }
+                String text = new String(readFully(conn.getInputStream()), UTF8);
+                store(meta, requested, text, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"));
+                return text;
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException ex) {
+            if (!cached) {
+                throw ex;
+            }
+            logger.warn("Can't reach " + requested + ", using cached config: " + ex.getMessage());
+            offline = true;
+            return readCache();
+        }
+    }
+
+    /**
+     * @return true if the last fetch had to fall back to the cached copy because the server was unreachable
+     */
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * @return when the cached copy was last stored, in milliseconds since the epoch
+     */
+    public long getCacheTime() {
+        return cacheFile.lastModified();
+    }
+
+    private static void setValidator(HttpURLConnection conn, String header, String value) {
+        if (value != null && !value.isEmpty()) {
+            conn.setRequestProperty(header, value);
+        }
+    }
+
+    private Properties loadMeta() {
+        Properties meta = new Properties();
+        if (metaFile.isFile()) {
+            try {
+                FileInputStream in = new FileInputStream(metaFile);
+                try {
+                    meta.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                logger.error("Error reading " + metaFile.getAbsolutePath(), ex);
+            }
+        }
+        return meta;
+    }
+
+    private void store(Properties meta, URL url, String text, String etag, String modified) {
+        // written to a temp file first, so a launcher killed while saving can't leave a truncated cache behind
+        File temp = new File(cacheFile.getParentFile(), CACHE_FILE + ".tmp");
+        try {
+            Files.write(temp.toPath(), text.getBytes(UTF8));
+            if (cacheFile.exists() && !cacheFile.delete() || !temp.renameTo(cacheFile)) {
+                throw new IOException("Can't replace " + cacheFile.getAbsolutePath());
+            }
+            meta.clear();
+            meta.setProperty("url", url.toString());
+            meta.setProperty("etag", etag == null ? "" : etag);
+            meta.setProperty("modified", modified == null ? "" : modified);
+            FileOutputStream out = new FileOutputStream(metaFile);
+            try {
+                meta.store(out, "---XMage cached config---");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            logger.error("Error caching config", ex);
+        }
+    }
+
+    private String readCache() throws IOException {
+        return new String(Files.readAllBytes(cacheFile.toPath()), UTF8);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] data = new byte[8192];
+            int count;
+            while ((count = in.read(data)) != -1) {
+                out.write(data, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+}
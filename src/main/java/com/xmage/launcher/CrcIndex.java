@@ -0,0 +1,144 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The CRC-32 of the files of an install, by path relative to the install folder with / as separator.  A cached CRC is
+ * only trusted while the size and modification time of the file are unchanged, so comparing an install with the
+ * entries of a zip archive mostly costs reading file metadata instead of the files.
+ */
+public class CrcIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(CrcIndex.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final class Record {
+        private final long size;
+        private final long modified;
+        private final long crc;
+
+        private Record(long size, long modified, long crc) {
+            this.size = size;
+            this.modified = modified;
+            this.crc = crc;
+        }
+    }
+
+    private final Map<String, Record> records = new ConcurrentHashMap<String, Record>();
+
+    /**
+     * @return the file the index of the install in folder is kept in, next to the folder so it survives swapping it
+     */
+    public static File forFolder(File folder) {
+        return new File(folder.getParentFile(), folder.getName() + ".crc");
+    }
+
+    /**
+     * Reads an index written by {@link #save(File)}.  A missing or damaged index just means the CRCs have to be
+     * computed again, so this never fails.
+     */
+    public static CrcIndex load(File file) {
+        CrcIndex index = new CrcIndex();
+        if (!file.isFile()) {
+            return index;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length == 4) {
+                        index.records.put(fields[3], new Record(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[0], 16)));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Can't read " + file.getAbsolutePath() + ", starting over", ex);
+            index.records.clear();
+        } catch (NumberFormatException ex) {
+            logger.warn("Damaged " + file.getAbsolutePath() + ", starting over");
+            index.records.clear();
+        }
+        return index;
+    }
+
+    /**
+     * @return the CRC-32 of file, found at path in the install, from the index if file hasn't changed since
+     */
+    public long getCrc(String path, File file) throws IOException {
+        long size = file.length();
+        long modified = file.lastModified();
+        Record record = records.get(path);
+        if (record != null && record.size == size && record.modified == modified) {
+            return record.crc;
+        }
+        long crc = crc(file);
+        records.put(path, new Record(size, modified, crc));
+        return crc;
+    }
+
+    /**
+     * Records the CRC-32 of a file just written, e.g. as listed for its zip entry.
+     */
+    public void put(String path, File file, long crc) {
+        records.put(path, new Record(file.length(), file.lastModified(), crc));
+    }
+
+    /**
+     * Forgets all files but those at paths.
+     */
+    public void retain(Collection<String> paths) {
+        records.keySet().retainAll(paths);
+    }
+
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                out.write(Long.toHexString(record.crc) + " " + record.size + " " + record.modified + " " + entry.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                crc.update(buffer.array(), 0, buffer.limit());
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return crc.getValue();
+    }
+
+}
@@ -0,0 +1,404 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Brings an installed xmage folder up to date with a {@link FileManifest}, fetching only the files whose content
+ * differs.  A changed file is taken from the {@link ArtifactStore} if it holds it, rebuilt from the installed version
+ * if there are patches leading to the new one, and otherwise downloaded whole.  Files are fetched in parallel into a staging folder and verified against their
+ * hash, so the installed files are only touched once everything needed is there.
+ */
+public class DeltaUpdater {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeltaUpdater.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RETRIES = 3;
+
+    private final File root;
+    private final File staging;
+    private final URL base;
+    private final FileManifest manifest;
+    private final Pattern keep;
+    private final List<Manifest.Patch> patches;
+    private final Map<String, String> installedHashes = new HashMap<String, String>();
+    private ArtifactStore store;
+    private final List<FileManifest.Entry> changed = new ArrayList<FileManifest.Entry>();
+    private final List<File> obsolete = new ArrayList<File>();
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong hashed = new AtomicLong();
+    private boolean repairOnly;
+    private long size;
+    private long scanTime;
+    private ExecutorService executor;
+
+    /**
+     * @param base the URL the paths in manifest are relative to, null if they can only be taken from the store
+     * @param keep names of files and folders never removed, even if they are not in manifest; may be null
+     * @param patches the patches available for files of the release
+     */
+    public DeltaUpdater(File root, File staging, URL base, FileManifest manifest, Pattern keep, List<Manifest.Patch> patches) {
+        this.root = root;
+        this.staging = staging;
+        this.base = base;
+        this.manifest = manifest;
+        this.keep = keep;
+        this.patches = patches;
+    }
+
+    /**
+     * Sets the store that changed files are looked up in before fetching them.
+     */
+    public void setStore(ArtifactStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Only fetches files that are missing or damaged, leaving the files not listed in the manifest alone.
+     */
+    public void setRepairOnly(boolean repairOnly) {
+        this.repairOnly = repairOnly;
+    }
+
+    /**
+     * Compares the installed files with the manifest, hashing (in parallel) every file whose size matches.  If there
+     * are patches the other installed files are hashed too, to look up patches starting from them.
+     */
+    public void scan(int threads) throws IOException {
+        long start = System.currentTimeMillis();
+        ExecutorService hashers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (final FileManifest.Entry entry : manifest.getEntries()) {
+                final File file = new File(root, entry.getPath());
+                if (file.isFile() && (file.length() == entry.getSize() || !patches.isEmpty())) {
+                    results.add(hashers.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                            String hash = Hashing.sha256(file);
+                            hashed.addAndGet(file.length());
+                            return hash;
+                        }
+                    }));
+                } else {
+                    results.add(null);
+                }
+            }
+            List<FileManifest.Entry> entries = manifest.getEntries();
+            for (int i = 0; i < entries.size(); i++) {
+                Future<String> result = results.get(i);
+                String hash = result == null ? null : result.get();
+                if (hash != null) {
+                    installedHashes.put(entries.get(i).getPath(), hash);
+                }
+                if (!entries.get(i).getSha256().equals(hash)) {
+                    changed.add(entries.get(i));
+                    size += entries.get(i).getSize();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Scan interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            hashers.shutdownNow();
+            scanTime = System.currentTimeMillis() - start;
+        }
+        if (repairOnly) {
+            logger.info(changed.size() + " of " + manifest.getEntries().size() + " files missing or damaged, " + hashed.get() + " bytes checked in " + scanTime + " ms");
+            return;
+        }
+
+        Set<String> listed = new HashSet<String>();
+        for (FileManifest.Entry entry : manifest.getEntries()) {
+            listed.add(entry.getPath());
+        }
+        findObsolete(root, "", listed);
+        logger.info(changed.size() + " of " + manifest.getEntries().size() + " files changed (" + size + " bytes), " + obsolete.size() + " obsolete");
+    }
+
+    private void findObsolete(File dir, String prefix, Set<String> listed) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (keep != null && keep.matcher(file.getName()).matches()) {
+                continue;
+            }
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                findObsolete(file, path + "/", listed);
+            } else if (!listed.contains(path)) {
+                obsolete.add(file);
+            }
+        }
+    }
+
+    public List<FileManifest.Entry> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the number of installed bytes hashed by {@link #scan(int)}
+     */
+    public long getHashed() {
+        return hashed.get();
+    }
+
+    /**
+     * @return how long {@link #scan(int)} took in ms
+     */
+    public long getScanTime() {
+        return scanTime;
+    }
+
+    /**
+     * @return the number of bytes to download
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public long getDownloaded() {
+        return downloaded.get();
+    }
+
+    /**
+     * Starts fetching the changed files into the staging folder using the given number of connections.
+     */
+    public void start(int threads, final String cookies) {
+        executor = Executors.newFixedThreadPool(threads);
+        for (final FileManifest.Entry entry : changed) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!errors.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        fetch(entry, cookies);
+                    } catch (IOException ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Waits up to millis for the downloads to finish.
+     *
+     * @return true if all files have been fetched (or fetching failed)
+     */
+    public boolean await(long millis) throws InterruptedException {
+        return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops any remaining downloads.
+     *
+     * @throws IOException the first error hit while fetching, if any
+     */
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /**
+     * Moves the fetched files into place and removes the obsolete ones, along with the folders they leave empty.  The
+     * files replaced or removed are moved aside first, so if a move fails everything done so far is undone and root is
+     * left as it was.
+     */
+    public void install() throws IOException {
+        File backup = new File(staging.getAbsolutePath() + ".backup");
+        DownloadTask.deleteTree(backup);
+        List<String> replaced = new ArrayList<String>();
+        List<String> added = new ArrayList<String>();
+        try {
+            for (FileManifest.Entry entry : changed) {
+                File to = new File(root, entry.getPath());
+                if (to.exists()) {
+                    move(to, new File(backup, entry.getPath()));
+                    replaced.add(entry.getPath());
+                }
+                move(new File(staging, entry.getPath()), to);
+                added.add(entry.getPath());
+            }
+            for (File file : obsolete) {
+                String path = root.toURI().relativize(file.toURI()).getPath();
+                move(file, new File(backup, path));
+                replaced.add(path);
+            }
+        } catch (IOException ex) {
+            rollback(added, replaced, backup);
+            throw ex;
+        }
+        for (File file : obsolete) {
+            pruneEmpty(file.getParentFile());
+        }
+        DownloadTask.deleteTree(backup);
+        DownloadTask.deleteTree(staging);
+    }
+
+    /**
+     * Undoes {@link #install()}: removes the files added and moves the ones replaced back from backup.
+     */
+    private void rollback(List<String> added, List<String> replaced, File backup) {
+        logger.warn("Installing the update failed, restoring " + root.getAbsolutePath());
+        for (String path : added) {
+            File file = new File(root, path);
+            if (!file.delete()) {
+                logger.error("Can't remove " + file.getAbsolutePath());
+            }
+            pruneEmpty(file.getParentFile());
+        }
+        boolean restored = true;
+        for (String path : replaced) {
+            try {
+                move(new File(backup, path), new File(root, path));
+            } catch (IOException ex) {
+                logger.error("Can't restore " + path, ex);
+                restored = false;
+            }
+        }
+        for (FileManifest.Entry entry : changed) {
+            pruneEmpty(new File(root, entry.getPath()).getParentFile());
+        }
+        if (restored) {
+            DownloadTask.deleteTree(backup);
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        to.getParentFile().mkdirs();
+        Files.move(from.toPath(), to.toPath());
+    }
+
+    /**
+     * Removes dir and its parents up to root as long as they are empty.
+     */
+    private void pruneEmpty(File dir) {
+        while (dir != null && !dir.equals(root)) {
+            String[] files = dir.list();
+            if (files == null || files.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+
+    private void fetch(FileManifest.Entry entry, String cookies) throws IOException {
+        File file = new File(staging, entry.getPath());
+        file.getParentFile().mkdirs();
+        if (store != null && store.link(entry.getSha256(), file)) {
+            downloaded.addAndGet(entry.getSize());
+            return;
+        }
+        String installedHash = installedHashes.get(entry.getPath());
+        if (installedHash != null) {
+            List<Manifest.Patch> chain = Patcher.findChain(patches, installedHash, entry.getSha256());
+            if (chain != null) {
+                try {
+                    Patcher.patch(new File(root, entry.getPath()), chain, file, cookies);
+                    downloaded.addAndGet(entry.getSize());
+                    return;
+                } catch (IOException ex) {
+                    logger.warn("Patching " + entry.getPath() + " failed, downloading it whole: " + ex.getMessage());
+                }
+            }
+        }
+        if (base == null) {
+            throw new IOException(entry.getPath() + " is not in the store");
+        }
+        URL url = resolve(entry.getPath());
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetch(url, cookies, file, entry);
+                return;
+            } catch (IOException ex) {
+                if (attempt >= MAX_RETRIES || Thread.currentThread().isInterrupted()) {
+                    throw ex;
+                }
+                logger.warn("Retrying download of " + url + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Downloads url to file, taking back the bytes counted as downloaded if it fails.
+     */
+    private void fetch(URL url, String cookies, File file, FileManifest.Entry entry) throws IOException {
+        MessageDigest digest = Hashing.newSha256();
+        Downloader dl = new Downloader();
+        dl.connect(url, cookies);
+        FileChannel out = new FileOutputStream(file).getChannel();
+        long written = 0;
+        try {
+            InputStream in = dl.getInputStream();
+            byte[] data = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(data)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                digest.update(data, 0, count);
+                written += count;
+                downloaded.addAndGet(count);
+            }
+        } catch (IOException ex) {
+            downloaded.addAndGet(-written);
+            throw ex;
+        } finally {
+            out.close();
+            dl.disconnect();
+        }
+        if (written != entry.getSize() || !Hashing.matches(entry.getSha256(), digest.digest())) {
+            downloaded.addAndGet(-written);
+            throw new IOException("Download of " + url + " does not match the file manifest");
+        }
+    }
+
+    private URL resolve(String path) throws IOException {
+        try {
+            return base.toURI().resolve(new URI(null, null, path, null)).toURL();
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid path " + path, ex);
+        }
+    }
+
+}
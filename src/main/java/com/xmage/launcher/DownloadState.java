@@ -0,0 +1,192 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Progress of a partial download, persisted next to the temp file so that a later attempt (even after a restart of
+ * the launcher) can continue where the previous one stopped.
+ */
+public class DownloadState {
+
+    private static final Logger logger = LoggerFactory.getLogger(DownloadState.class);
+    private static final String STATE_SUFFIX = ".state";
+
+    /**
+     * A byte range of the file, from start to end inclusive.  Everything before position has been written.
+     */
+    public static class Segment {
+        final long start;
+        final long end;
+        volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        public boolean isDone() {
+            return position > end;
+        }
+    }
+
+    private final File stateFile;
+    private String url;
+    private String validator;
+    private final long size;
+    private final List<Segment> segments;
+
+    private DownloadState(File stateFile, String url, String validator, long size, List<Segment> segments) {
+        this.stateFile = stateFile;
+        this.url = url;
+        this.validator = validator;
+        this.size = size;
+        this.segments = segments;
+    }
+
+    /**
+     * Creates a fresh state for temp splitting the file into count segments of (nearly) the same size.
+     */
+    public static DownloadState create(File temp, URL url, String validator, long size, int count) {
+        List<Segment> segments = new ArrayList<Segment>();
+        long segmentSize = size / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            long end = (i == count - 1 ? size : start + segmentSize) - 1;
+            segments.add(new Segment(start, end, start));
+        }
+        return new DownloadState(getStateFile(temp), url.toString(), validator, size, segments);
+    }
+
+    /**
+     * Loads the state saved for temp, or returns null if there is none or it was not made by one of mirrors.
+     */
+    public static DownloadState load(File temp, List<URL> mirrors) {
+        File stateFile = getStateFile(temp);
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        try {
+            Properties props = new Properties();
+            FileInputStream in = new FileInputStream(stateFile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            long size = Long.parseLong(props.getProperty("size", "0"));
+            String validator = props.getProperty("validator", "");
+            String url = props.getProperty("url", "");
+            if (!isMirror(url, mirrors) || validator.isEmpty() || temp.length() != size) {
+                logger.info("Discarding partial download of " + props.getProperty("url"));
+                delete(temp);
+                return null;
+            }
+            List<Segment> segments = new ArrayList<Segment>();
+            int count = Integer.parseInt(props.getProperty("segments", "0"));
+            for (int i = 0; i < count; i++) {
+                String[] values = props.getProperty("segment." + i).split(",");
+                segments.add(new Segment(Long.parseLong(values[0]), Long.parseLong(values[1]), Long.parseLong(values[2])));
+            }
+            return new DownloadState(stateFile, url, validator, size, segments);
+        } catch (IOException ex) {
+            logger.error("Error reading download state " + stateFile.getAbsolutePath(), ex);
+        } catch (RuntimeException ex) {
+            logger.error("Invalid download state " + stateFile.getAbsolutePath(), ex);
+        }
+        delete(temp);
+        return null;
+    }
+
+    private static boolean isMirror(String url, List<URL> mirrors) {
+        for (URL mirror : mirrors) {
+            if (mirror.toString().equals(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes the state saved for temp, if any.
+     */
+    public static void delete(File temp) {
+        File stateFile = getStateFile(temp);
+        if (stateFile.exists() && !stateFile.delete()) {
+            logger.error("Can't remove " + stateFile.getAbsolutePath());
+        }
+    }
+
+    private static File getStateFile(File temp) {
+        return new File(temp.getParentFile(), temp.getName() + STATE_SUFFIX);
+    }
+
+    public synchronized void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty("url", url);
+        props.setProperty("validator", validator == null ? "" : validator);
+        props.setProperty("size", Long.toString(size));
+        props.setProperty("segments", Integer.toString(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            props.setProperty("segment." + i, segment.start + "," + segment.end + "," + segment.position);
+        }
+        FileOutputStream out = new FileOutputStream(stateFile);
+        try {
+            props.store(out, "---XMage partial download---");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Continues the download from another mirror, which identifies its copy of the file by validator.
+     */
+    public synchronized void switchTo(URL url, String validator) {
+        this.url = url.toString();
+        this.validator = validator;
+    }
+
+    public synchronized boolean isFrom(URL url) {
+        return this.url.equals(url.toString());
+    }
+
+    public synchronized String getValidator() {
+        return validator;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes already written to the temp file
+     */
+    public long getCommitted() {
+        long committed = 0;
+        for (Segment segment : segments) {
+            committed += segment.position - segment.start;
+        }
+        return committed;
+    }
+
+    public List<Segment> getRemaining() {
+        List<Segment> remaining = new ArrayList<Segment>();
+        for (Segment segment : segments) {
+            if (!segment.isDone()) {
+                remaining.add(segment);
+            }
+        }
+        return remaining;
+    }
+
+}
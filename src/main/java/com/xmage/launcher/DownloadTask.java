@@ -8,10 +8,40 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import javax.swing.JProgressBar;
 import javax.swing.JTextArea;
@@ -20,7 +50,9 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.xmage.launcher.DownloadTask.Progress;
@@ -33,64 +65,972 @@ public abstract class DownloadTask extends SwingWorker<Void, Progress> {
 
     public static class Progress {
         String text;
-        Integer perc;
 
         public Progress(String text) {
             this.text = text;
-            perc = -1;
-        }
-
-        public Progress(Integer perc) {
-            this.perc = perc;
-            text = null;
         }
 
     }
 
     private static final int BUFFER_SIZE = 4096;
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL = 100;
+    private static final long STATE_INTERVAL = 1000;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_DELAY = 2000;
+    private static final long THROUGHPUT_WINDOW = 5000;
+    private static final int COLLAPSE_FACTOR = 4;
+    private static final ResourceBundle MESSAGES = ResourceBundle.getBundle("MessagesBundle");
     private static final Logger logger = LoggerFactory.getLogger(DownloadTask.class);    
     
-    private final JProgressBar progressBar;
+    private final ProgressMeter meter;
     private final JTextArea textArea;
+    private InstallProfile profile = InstallProfile.FULL;
 
     public DownloadTask(JProgressBar progressBar, JTextArea textArea) {
-        this.progressBar = progressBar;
+        this.meter = new ProgressMeter(progressBar);
         this.textArea = textArea;
     }
 
-    protected boolean download(URL downloadURL, String saveDirectory, String cookies) throws IOException {
-        try {
-            Downloader dl = new Downloader();
-            dl.connect(downloadURL, cookies);
+    /**
+     * Limits the files extracted and updated to those that are part of an install with profile.
+     */
+    public void setInstallProfile(InstallProfile profile) {
+        this.profile = profile;
+    }
 
-            BufferedInputStream in = dl.getInputStream();
+    /**
+     * Downloads downloadURL to xmage.dl in saveDirectory.  Partial downloads are kept together with their
+     * {@link DownloadState} so that a later call for the same URL continues where this one stopped.
+     */
+    protected boolean download(URL downloadURL, String saveDirectory, String cookies) {
+        return download(Collections.singletonList(downloadURL), saveDirectory, cookies, "");
+    }
 
-            File temp = new File(saveDirectory + File.separator + "xmage.dl");
-            FileOutputStream fout = new FileOutputStream(temp);
+    protected boolean download(URL downloadURL, String saveDirectory, String cookies, String sha256) {
+        return download(Collections.singletonList(downloadURL), saveDirectory, cookies, sha256);
+    }
 
-            final byte data[] = new byte[BUFFER_SIZE];
-            int count;
-            long total = 0;
+    /**
+     * Downloads a file available from several mirrors to xmage.dl in saveDirectory, trying them in the given order.
+     * A mirror is abandoned for the next one when its throughput collapses, and the next one continues from the bytes
+     * already downloaded.  The throughput reached (or the failure) is recorded in the mirror's score.  If sha256
+     * is not empty the file must have that hash, a corrupt file is deleted and the next mirror is tried.
+     *
+     * @see MirrorSelector#rank(List, String)
+     */
+    protected boolean download(List<URL> mirrors, String saveDirectory, String cookies, String sha256) {
+        File temp = new File(saveDirectory + File.separator + "xmage.dl");
+        MessageDigest digest = sha256.isEmpty() ? null : Hashing.newSha256();
+        for (int i = 0; i < mirrors.size(); i++) {
+            URL mirror = mirrors.get(i);
+            boolean hasNext = i < mirrors.size() - 1;
+            if (mirrors.size() > 1) {
+                publish(MESSAGES.getString("download.from") + mirror + "\n");
+            }
+            long start = System.nanoTime();
+            try {
+                publish(0);
+                long transferred = downloadFrom(mirror, mirrors, temp, cookies, hasNext, digest);
+                if (digest != null && !Hashing.matches(sha256, digest.digest())) {
+                    publish(MESSAGES.getString("download.corrupt") + mirror + "\n");
+                    if (!temp.delete()) {
+                        logger.error("Can't remove " + temp.getAbsolutePath());
+                    }
+                    throw new IOException("SHA-256 of the download from " + mirror + " does not match " + sha256);
+                }
+                if (mirrors.size() > 1) {
+                    MirrorSelector.recordThroughput(mirror, transferred / Math.max(0.001, (System.nanoTime() - start) / 1e9));
+                    Config.saveProperties();
+                }
+                return true;
+            } catch (IOException ex) {
+                publish(0);
+                logger.error("Error: ", ex);
+                if (mirrors.size() > 1) {
+                    publish(MESSAGES.getString("download.from.failed") + mirror + "\n");
+                    MirrorSelector.recordFailure(mirror);
+                    Config.saveProperties();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Downloads from one mirror, continuing a partial download made by any of mirrors.
+     *
+     * @param abandonWhenSlow give up when the throughput collapses, because there is another mirror to try
+     * @param digest if not null, is reset and then fed the whole downloaded file
+     * @return the number of bytes transferred
+     */
+    private long downloadFrom(URL downloadURL, List<URL> mirrors, File temp, String cookies, boolean abandonWhenSlow, MessageDigest digest)
+            throws IOException {
+        if (digest != null) {
+            digest.reset();
+        }
+        Downloader dl = new Downloader();
+        DownloadState state = DownloadState.load(temp, mirrors);
+        if (state != null && state.getRemaining().isEmpty()) {
+            // stopped after the last byte but before the file was used, so only verifying it is left
+            logger.info(temp.getAbsolutePath() + " was downloaded completely before");
+            if (digest != null) {
+                Hashing.update(digest, temp);
+            }
+            DownloadState.delete(temp);
+            return 0;
+        }
+        if (state != null) {
+            // another mirror's validator means nothing here, so rely on the file size instead
+            boolean sameMirror = state.isFrom(downloadURL);
+            DownloadState.Segment first = state.getRemaining().get(0);
+            dl.connect(downloadURL, cookies, first.position, first.end, sameMirror ? state.getValidator() : null);
+            if (dl.isPartial() && dl.getTotalSize() == state.getSize()) {
+                publish(MessageFormat.format(MESSAGES.getString("download.resuming"), state.getCommitted() * 100 / state.getSize()) + "\n");
+                if (!sameMirror) {
+                    state.switchTo(downloadURL, dl.getValidator());
+                }
+            } else {
+                // the file changed on the server, start over with the full response
+                logger.info("Restarting download of " + downloadURL);
+                DownloadState.delete(temp);
+                state = null;
+                if (dl.isPartial()) {
+                    dl.disconnect();
+                    dl = new Downloader();
+                    dl.connect(downloadURL, cookies);
+                }
+            }
+        } else {
+            dl.connect(downloadURL, cookies);
+        }
+        if (state == null) {
             long size = dl.getSize();
-            publish(0);
-            while ((count = in.read(data, 0, BUFFER_SIZE)) != -1) {
-                fout.write(data, 0, count);
+            if (size <= 0) {
+                return stream(dl, temp, digest);
+            }
+            int connections = Config.getDownloadConnections();
+            int count = dl.acceptsRanges() ? (int) Math.max(1, Math.min(connections, size / MIN_SEGMENT_SIZE)) : 1;
+            state = DownloadState.create(temp, downloadURL, dl.getValidator(), size, count);
+        }
+        long transferred = downloadSegments(dl, state, downloadURL, cookies, temp, abandonWhenSlow, digest);
+        DownloadState.delete(temp);
+        return transferred;
+    }
+
+    /**
+     * Copies a response of unknown length, which can't be resumed.
+     */
+    private long stream(Downloader dl, File temp, MessageDigest digest) throws IOException {
+        BufferedInputStream in = dl.getInputStream();
+        FileChannel channel = new FileOutputStream(temp).getChannel();
+        try {
+            final byte data[] = new byte[TRANSFER_BUFFER_SIZE];
+            long total = 0;
+            int count;
+            meter.begin(-1, 0);
+            while ((count = in.read(data, 0, data.length)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (digest != null) {
+                    digest.update(data, 0, count);
+                }
                 total += count;
-                publish((int) (total * 100 / size));
+                meter.add(count);
             }
-            fout.close();
+            meter.end();
+            return total;
+        } finally {
+            channel.close();
             dl.disconnect();
+        }
+    }
+
+    /**
+     * Fetches the remaining segments of state concurrently into one preallocated file, one connection per segment.
+     * The connection already opened by the caller is used for the first remaining segment.  The state is saved
+     * regularly and whenever the download stops before completion.  A file fetched front to back over a single
+     * connection is hashed while it is written, otherwise it is hashed once complete.
+     *
+     * @return the number of bytes transferred
+     */
+    private long downloadSegments(Downloader first, final DownloadState state, final URL downloadURL, final String cookies, File temp,
+            boolean abandonWhenSlow, MessageDigest digest) throws IOException {
+        List<DownloadState.Segment> remaining = state.getRemaining();
+        long size = state.getSize();
+        long committed = state.getCommitted();
+        final AtomicLong total = new AtomicLong(committed);
+        final List<Downloader> connections = Collections.synchronizedList(new ArrayList<Downloader>());
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final MessageDigest inlineDigest = remaining.size() == 1 && committed == 0 ? digest : null;
+        ExecutorService executor = Executors.newFixedThreadPool(remaining.size());
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        final FileChannel channel = raf.getChannel();
+        try {
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < remaining.size(); i++) {
+                final DownloadState.Segment segment = remaining.get(i);
+                final Downloader dl = i == 0 ? first : null;
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                        downloadSegment(dl, state, segment, downloadURL, cookies, channel, total, connections, stopped, inlineDigest);
+                        return null;
+                    }
+                }));
+            }
+            logger.info("Downloading " + downloadURL + " using " + remaining.size() + " connections");
+            executor.shutdown();
+            meter.begin(size, committed);
+            long lastSave = System.currentTimeMillis();
+            long windowStart = lastSave;
+            long windowBytes = total.get();
+            double peakRate = 0;
+            while (!executor.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                meter.set(total.get());
+                long now = System.currentTimeMillis();
+                if (now - lastSave > STATE_INTERVAL) {
+                    channel.force(false);
+                    state.save();
+                    lastSave = now;
+                }
+                if (now - windowStart >= THROUGHPUT_WINDOW) {
+                    double rate = (total.get() - windowBytes) * 1000.0 / (now - windowStart);
+                    if (abandonWhenSlow && rate < peakRate / COLLAPSE_FACTOR) {
+                        throw new IOException("Throughput from " + downloadURL + " collapsed to " + Math.round(rate / 1024) + " KB/s");
+                    }
+                    peakRate = Math.max(peakRate, rate);
+                    windowStart = now;
+                    windowBytes = total.get();
+                }
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            if (digest != null && inlineDigest == null) {
+                Hashing.update(digest, temp);
+            }
+            meter.end();
+            return total.get() - committed;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            // interrupting the workers would close the channel, so stop them by dropping their connections instead
+            stopped.set(true);
+            executor.shutdown();
+            synchronized (connections) {
+                for (Downloader dl : connections) {
+                    dl.abort();
+                }
+            }
+            if (!state.getRemaining().isEmpty()) {
+                channel.force(false);
+                state.save();
+            }
+            raf.close();
+        }
+    }
+
+    /**
+     * Downloads one segment, reconnecting from the last written byte when the connection drops.
+     */
+    private static void downloadSegment(Downloader dl, DownloadState state, DownloadState.Segment segment, URL downloadURL, String cookies,
+            FileChannel channel, AtomicLong total, List<Downloader> connections, AtomicBoolean stopped, MessageDigest digest)
+            throws IOException, InterruptedException {
+        int attempt = 0;
+        while (true) {
+            try {
+                if (dl == null) {
+                    if (stopped.get()) {
+                        return;
+                    }
+                    dl = new Downloader();
+                    dl.connect(downloadURL, cookies, segment.position, segment.end, state.getValidator());
+                    if (!dl.isPartial()) {
+                        attempt = MAX_RETRIES; // the file changed on the server, retrying won't help
+                        throw new IOException("Server did not send the requested range of " + downloadURL);
+                    }
+                }
+                connections.add(dl);
+                transfer(dl.getInputStream(), channel, segment, total, digest);
+                return;
+            } catch (IOException ex) {
+                if (++attempt > MAX_RETRIES || stopped.get()) {
+                    throw ex;
+                }
+                logger.warn("Retrying download of " + downloadURL + " from byte " + segment.position + ": " + ex.getMessage());
+                Thread.sleep(attempt * RETRY_DELAY);
+            } finally {
+                if (dl != null) {
+                    connections.remove(dl);
+                    try {
+                        dl.disconnect();
+                    } catch (IOException ex) {
+                        logger.warn("Error closing connection: " + ex.getMessage());
+                    }
+                    dl = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the response into the segment.  Reads ask for up to 256 KB, so a fast connection is written in few
+     * large blocks while a slow one still reports progress for every chunk it delivers.  The bytes are fed to digest
+     * (if not null) as they are written, which is only meaningful when the segment is the whole file.
+     */
+    private static void transfer(BufferedInputStream in, FileChannel channel, DownloadState.Segment segment, AtomicLong total, MessageDigest digest)
+            throws IOException {
+        final byte data[] = new byte[TRANSFER_BUFFER_SIZE];
+        while (!segment.isDone()) {
+            int count = in.read(data, 0, (int) Math.min(data.length, segment.end - segment.position + 1));
+            if (count == -1) {
+                throw new IOException("Connection closed after " + (segment.position - segment.start) + " of " + (segment.end - segment.start + 1) + " bytes");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+            while (buffer.hasRemaining()) {
+                int offset = buffer.position();
+                int written = channel.write(buffer, segment.position);
+                if (digest != null) {
+                    digest.update(data, offset, written);
+                }
+                segment.position += written;
+            }
+            total.addAndGet(count);
+        }
+    }
+
+    /**
+     * Fetches an archive for installation.  When extracting while downloading is enabled the archive is fed straight
+     * from the network into the decompressor and unpacked into staging, so that download and extraction overlap.  The
+     * bytes streamed are kept in xmage.dl in saveDirectory as well, so when extracting fails the download continues
+     * from there rather than from the start, and when a mirror fails the next one is tried.  If the option is off the
+     * archive is downloaded (resumably) to xmage.dl only.  With several mirrors the fastest one is used first.  If
+     * sha256 is not empty the archive must have that hash.
+     *
+     * @return true if the archive is either extracted into staging or saved to xmage.dl
+     * @see #installArchive(File, File, File, boolean)
+     */
+    protected boolean downloadArchive(List<URL> mirrors, String saveDirectory, File staging, boolean zip, String cookies, String sha256) {
+        deleteTree(staging);
+        if (mirrors.size() > 1) {
+            mirrors = MirrorSelector.rank(mirrors, cookies);
+        }
+        File temp = new File(saveDirectory + File.separator + "xmage.dl");
+        // a download left partial earlier is continued rather than streamed again from the start
+        if (Config.isExtractWhileDownloading() && DownloadState.load(temp, mirrors) == null) {
+            for (int i = 0; i < mirrors.size(); i++) {
+                URL downloadURL = mirrors.get(i);
+                if (mirrors.size() > 1) {
+                    publish(MESSAGES.getString("download.from") + downloadURL + "\n");
+                }
+                staging.mkdirs();
+                MessageDigest digest = sha256.isEmpty() ? null : Hashing.newSha256();
+                Streamed streamed = downloadAndExtract(downloadURL, staging, temp, zip, cookies, digest);
+                if (streamed == Streamed.PARTIAL) {
+                    logger.info("Extracting while downloading failed, continuing the download of " + downloadURL);
+                    deleteTree(staging);
+                    return download(mirrors.subList(i, mirrors.size()), saveDirectory, cookies, sha256);
+                }
+                if (streamed != Streamed.FAILED) {
+                    if (digest == null || Hashing.matches(sha256, digest.digest())) {
+                        if (streamed == Streamed.SAVED) {
+                            logger.info("Extracting while downloading failed, installing from the downloaded archive");
+                            deleteTree(staging);
+                        }
+                        return true;
+                    }
+                    publish(MESSAGES.getString("download.corrupt") + downloadURL + "\n");
+                    if (temp.isFile() && !temp.delete()) {
+                        logger.error("Can't remove " + temp.getAbsolutePath());
+                    }
+                } else if (mirrors.size() > 1) {
+                    publish(MESSAGES.getString("download.from.failed") + downloadURL + "\n");
+                }
+                if (mirrors.size() > 1) {
+                    MirrorSelector.recordFailure(downloadURL);
+                    Config.saveProperties();
+                }
+                deleteTree(staging);
+            }
+            logger.info("Extracting while downloading failed from every mirror, downloading " + mirrors.get(0) + " first");
+        }
+        return download(mirrors, saveDirectory, cookies, sha256);
+    }
+
+    protected boolean downloadArchive(URL downloadURL, String saveDirectory, File staging, boolean zip, String cookies, String sha256) {
+        return downloadArchive(Collections.singletonList(downloadURL), saveDirectory, staging, zip, cookies, sha256);
+    }
+
+    /**
+     * Updates the files below root to the release described by the file manifest at listing, patching or
+     * downloading only the files that changed.  Files and folders whose name matches keep are left alone.
+     *
+     * @param store if not null, changed files are taken from it when it has them, and the updated files are added to it
+     *              as ref
+     * @return false if the update failed, root is unchanged in that case
+     */
+    protected boolean updateFiles(URL listing, File root, File staging, Pattern keep, List<Manifest.Patch> patches, ArtifactStore store,
+            String ref, String cookies) {
+        FileManifest manifest;
+        try {
+            manifest = readManifest(listing, cookies);
+        } catch (IOException ex) {
+            logger.error("Error: ", ex);
+            return false;
+        }
+        return updateFiles(manifest, listing, root, staging, keep, patches, store, ref, cookies, false);
+    }
+
+    /**
+     * Puts the files of a version kept in store as ref back below root, without downloading anything.
+     *
+     * @return false if the store doesn't have that version (any more), root is unchanged in that case
+     */
+    protected boolean restoreFiles(File root, File staging, Pattern keep, ArtifactStore store, String ref) {
+        File stored = store.getRef(ref);
+        if (stored == null) {
+            return false;
+        }
+        FileManifest manifest;
+        try {
+            manifest = readManifest(stored);
+        } catch (IOException ex) {
+            logger.error("Error: ", ex);
+            return false;
+        }
+        return updateFiles(manifest, null, root, staging, keep, Collections.<Manifest.Patch>emptyList(), store, ref, "", false);
+    }
+
+    /**
+     * Checks the files below root against the release described by the file manifest at listing, or if listing is
+     * null against the version kept in store as ref, and fetches only the files that are missing or damaged.  Files
+     * not in the release are left alone.  Reports the hashing throughput and the repaired files.
+     *
+     * @return false if the release is unknown or repairing failed
+     */
+    protected boolean verifyFiles(URL listing, File root, File staging, Pattern keep, ArtifactStore store, String ref, String cookies) {
+        FileManifest manifest;
+        try {
+            if (listing != null) {
+                manifest = readManifest(listing, cookies);
+            } else if (store.getRef(ref) != null) {
+                manifest = readManifest(store.getRef(ref));
+            } else {
+                return false;
+            }
+        } catch (IOException ex) {
+            logger.error("Error: ", ex);
+            return false;
+        }
+        return updateFiles(manifest, listing, root, staging, keep, Collections.<Manifest.Patch>emptyList(), store, ref, cookies, true);
+    }
+
+    /**
+     * Checks the files below root against the file manifest in listing, without repairing anything.
+     *
+     * @return the number of missing or damaged files
+     */
+    protected int checkFiles(File listing, File root) throws IOException {
+        FileManifest manifest = readManifest(listing);
+        publish(MESSAGES.getString("verify.checking") + root.getAbsolutePath() + "\n");
+        DeltaUpdater updater = new DeltaUpdater(root, null, null, manifest, null, Collections.<Manifest.Patch>emptyList());
+        updater.setRepairOnly(true);
+        updater.scan(Runtime.getRuntime().availableProcessors());
+        publishVerified(updater);
+        return updater.getChanged().size();
+    }
+
+    private void publishVerified(DeltaUpdater updater) {
+        double megabytes = updater.getHashed() / (1024.0 * 1024.0);
+        double seconds = Math.max(updater.getScanTime(), 1) / 1000.0;
+        publish(MessageFormat.format(MESSAGES.getString("verify.checked"), String.format("%.1f", megabytes), String.format("%.1f", seconds),
+                String.format("%.1f", megabytes / seconds), updater.getChanged().size()) + "\n");
+    }
+
+    private static FileManifest readManifest(URL listing, String cookies) throws IOException {
+        Downloader dl = new Downloader();
+        dl.connect(listing, cookies);
+        try {
+            return FileManifest.parse(new InputStreamReader(dl.getInputStream(), "UTF-8"));
+        } finally {
+            dl.disconnect();
+        }
+    }
+
+    private static FileManifest readManifest(File listing) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(listing), "UTF-8");
+        try {
+            return FileManifest.parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param base the URL the paths in manifest are relative to, or null to take all files from store
+     * @param repair only fetch missing and damaged files, see {@link #verifyFiles(URL, File, File, Pattern, ArtifactStore, String, String)}
+     */
+    private boolean updateFiles(FileManifest manifest, URL base, File root, File staging, Pattern keep, List<Manifest.Patch> patches,
+            ArtifactStore store, String ref, String cookies, boolean repair) {
+        DeltaUpdater updater = null;
+        try {
+            publish((repair ? MESSAGES.getString("verify.checking") + root.getAbsolutePath() : MESSAGES.getString("update.checking")) + "\n");
+            manifest = manifest.filter(profile);
+            deleteTree(staging);
+            updater = new DeltaUpdater(root, staging, base, manifest, keep, patches);
+            updater.setStore(store);
+            updater.setRepairOnly(repair);
+            updater.scan(Runtime.getRuntime().availableProcessors());
+            if (repair) {
+                publishVerified(updater);
+            } else {
+                publish(MessageFormat.format(MESSAGES.getString("update.changed"), updater.getChanged().size(), manifest.getEntries().size(),
+                        String.format("%.1f", updater.getSize() / (1024.0 * 1024.0))) + "\n");
+            }
+
+            meter.begin(updater.getSize(), 0);
+            updater.start(Config.getDownloadConnections(), cookies);
+            while (!updater.await(PROGRESS_INTERVAL)) {
+                meter.set(updater.getDownloaded());
+            }
+            updater.close();
+            meter.end();
+            updater.install();
+            if (repair) {
+                for (FileManifest.Entry entry : updater.getChanged()) {
+                    publish(MESSAGES.getString("verify.repaired") + entry.getPath() + "\n");
+                }
+            }
+            if (store != null) {
+                Map<String, String> hashes = new HashMap<String, String>();
+                for (FileManifest.Entry entry : manifest.getEntries()) {
+                    hashes.put(entry.getPath(), entry.getSha256());
+                }
+                addToStore(store, root, ref, keep, hashes);
+            }
             return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logger.error("Update interrupted", ex);
+        } catch (IOException ex) {
+            logger.error("Error: ", ex);
+        }
+        if (updater != null) {
+            try {
+                updater.close();
+            } catch (IOException ex) {
+                // already reported
+            }
+        }
+        publish(0);
+        deleteTree(staging);
+        return false;
+    }
+
+    /**
+     * Adds the files below root to store as ref, logging rather than failing if that isn't possible.
+     *
+     * @param hashes the hashes of files already known, by relative path; may be null
+     */
+    protected void addToStore(ArtifactStore store, File root, String ref, Pattern keep, Map<String, String> hashes) {
+        try {
+            store.add(root, ref, keep, hashes, Runtime.getRuntime().availableProcessors());
+        } catch (IOException ex) {
+            logger.error("Adding " + root + " to the store failed", ex);
+        }
+    }
+
+    /**
+     * Builds the version of a file with hash sha256 into out by applying patches to the installed version old.
+     *
+     * @return false if there is no chain of patches leading from old to that version, or patching failed
+     */
+    protected boolean downloadPatched(File old, List<Manifest.Patch> patches, String sha256, File out, String cookies) {
+        if (patches.isEmpty() || sha256.isEmpty() || !old.isFile()) {
+            return false;
+        }
+        try {
+            List<Manifest.Patch> chain = Patcher.findChain(patches, Hashing.sha256(old), sha256);
+            if (chain == null || chain.isEmpty()) {
+                return false;
+            }
+            publish(MessageFormat.format(MESSAGES.getString("download.patching"), chain.size()) + "\n");
+            publish(0);
+            Patcher.patch(old, chain, out, cookies);
+            publish(100);
+            return true;
+        } catch (IOException ex) {
+            logger.error("Patching " + old.getName() + " failed", ex);
+            publish(0);
+            return false;
+        }
+    }
+
+    /**
+     * Installs an archive fetched by {@link #downloadArchive(List, String, File, boolean, String, String)} into to, either by
+     * moving the already extracted files out of staging or by extracting from and then deleting from.
+     */
+    protected void installArchive(File staging, File from, File to, boolean zip) throws IOException {
+        if (staging.isDirectory()) {
+            moveInto(staging, to);
+            deleteTree(staging);
+        } else {
+            if (zip) {
+                unzip(from, to);
+            } else {
+                extract(from, to);
+            }
+            if (!from.delete()) {
+                publish(MESSAGES.getString("error.cleanup") + "\n");
+                logger.error("Error: could not cleanup temporary files");
+            }
+        }
+    }
+
+    /**
+     * Makes sure staging holds the content of an archive fetched by
+     * {@link #downloadArchive(List, String, File, boolean, String, String)}, extracting from and then deleting it if
+     * the archive wasn't extracted while downloading.
+     */
+    protected void extractArchive(File staging, File from, boolean zip) throws IOException {
+        extractArchive(staging, from, zip, null);
+    }
+
+    /**
+     * Like {@link #extractArchive(File, File, boolean)}, but zip entries unchanged since the install in previous are
+     * linked from there instead of being extracted again.
+     *
+     * @param previous the installed version, or null
+     */
+    protected void extractArchive(File staging, File from, boolean zip, File previous) throws IOException {
+        if (staging.isDirectory()) {
+            return;
+        }
+        staging.mkdirs();
+        if (zip) {
+            unzip(from, staging, previous);
+        } else {
+            extract(from, staging);
+        }
+        if (!from.delete()) {
+            publish(MESSAGES.getString("error.cleanup") + "\n");
+            logger.error("Error: could not cleanup temporary files");
+        }
+    }
+
+    /**
+     * What {@link #downloadAndExtract(URL, File, File, boolean, String, MessageDigest)} got done.
+     */
+    private enum Streamed {
+        /** the archive is extracted */
+        EXTRACTED,
+        /** extracting failed, but the whole archive is saved */
+        SAVED,
+        /** extracting failed, the part of the archive saved can be resumed by {@link #download(List, String, String, String)} */
+        PARTIAL,
+        /** nothing worth keeping */
+        FAILED
+    }
+
+    /**
+     * Streams a zip or .tar.gz archive from downloadURL straight into to, keeping a copy of the bytes read in temp.
+     * When extracting fails the rest of the archive is still saved to temp if the connection allows, otherwise what was
+     * saved is left with a {@link DownloadState} to be resumed, provided the server supports that.
+     *
+     * @param digest if not null, is fed the whole archive
+     */
+    private Streamed downloadAndExtract(URL downloadURL, File to, File temp, boolean zip, String cookies, MessageDigest digest) {
+        Downloader dl = new Downloader();
+        TeeInputStream tee = null;
+        Streamed streamed;
+        try {
+            dl.connect(downloadURL, cookies);
+            tee = new TeeInputStream(dl.getInputStream(), new BufferedOutputStream(new FileOutputStream(temp), TRANSFER_BUFFER_SIZE));
+            CountingInputStream counter = new CountingInputStream(digestInput(tee, digest));
+            meter.begin(dl.getSize(), 0);
+            if (zip) {
+                writeZipEntries(new ZipArchiveInputStream(counter, "UTF8", true, true), to, counter);
+            } else {
+                writeTarEntries(new TarArchiveInputStream(new GzipCompressorInputStream(counter)), to, counter);
+            }
+            drain(counter);
+            tee.close();
+            meter.end();
+            streamed = Streamed.EXTRACTED;
         } catch (IOException ex) {
             publish(0);
-            cancel(true);
             logger.error("Error: ", ex);
+            streamed = tee == null ? Streamed.FAILED : keepStreamed(dl, downloadURL, tee, temp, digest);
+        } finally {
+            try {
+                if (tee != null) {
+                    tee.close();
+                }
+                dl.disconnect();
+            } catch (IOException ex) {
+                logger.warn("Error closing the download of " + downloadURL, ex);
+            }
+        }
+        if (streamed == Streamed.EXTRACTED) {
+            if (zip) {
+                setUnixModes(temp, to);
+            }
+            if (!temp.delete()) {
+                logger.error("Can't remove " + temp.getAbsolutePath());
+            }
+        }
+        return streamed;
+    }
+
+    /**
+     * Saves what is left of the archive to temp after extracting it failed, or failing that makes what was saved
+     * resumable.
+     */
+    private Streamed keepStreamed(Downloader dl, URL downloadURL, TeeInputStream tee, File temp, MessageDigest digest) {
+        long size = dl.getSize();
+        try {
+            // the extractor may have failed on its side, e.g. a full disk or a bad entry, with the connection still fine
+            drain(tee);
+            tee.close();
+            if (size < 0 || tee.getCopied() == size) {
+                if (digest != null) {
+                    digest.reset();
+                    Hashing.update(digest, temp);
+                }
+                return Streamed.SAVED;
+            }
+        } catch (IOException ex) {
+            logger.info("Saved " + tee.getCopied() + " bytes of " + downloadURL + " before it failed");
+        }
+        try {
+            tee.close();
+            if (size > 0 && tee.getCopied() > 0 && tee.getCopied() < size && dl.acceptsRanges() && dl.getValidator() != null) {
+                RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+                try {
+                    raf.setLength(size);
+                } finally {
+                    raf.close();
+                }
+                DownloadState state = DownloadState.create(temp, downloadURL, dl.getValidator(), size, 1);
+                state.getRemaining().get(0).position = tee.getCopied();
+                state.save();
+                return Streamed.PARTIAL;
+            }
+        } catch (IOException ex) {
+            logger.error("Can't keep the partial download of " + downloadURL, ex);
+        }
+        DownloadState.delete(temp);
+        if (temp.isFile() && !temp.delete()) {
+            logger.error("Can't remove " + temp.getAbsolutePath());
+        }
+        return Streamed.FAILED;
+    }
+
+    /**
+     * Applies the unix modes of the entries of the zip archive to the files extracted from it into to.  A zip stream
+     * lists them only in the central directory at its end, after the entries are written.
+     */
+    private void setUnixModes(File archive, File to) {
+        if (Files.getFileAttributeView(to.toPath(), PosixFileAttributeView.class) == null) {
+            return;
+        }
+        try {
+            ZipFile zipFile = new ZipFile(archive);
+            try {
+                for (Enumeration<ZipArchiveEntry> entries = zipFile.getEntries(); entries.hasMoreElements();) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (!entry.isDirectory() && entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX && entry.getUnixMode() != 0
+                            && profile.includes(entry.getName())) {
+                        File file = new File(to, entry.getName());
+                        if (file.isFile()) {
+                            Files.setPosixFilePermissions(file.toPath(), ZipExtractor.getPermissions(entry.getUnixMode()));
+                        }
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Can't set the file modes from " + archive.getAbsolutePath(), ex);
+        }
+    }
+
+    private static InputStream digestInput(InputStream in, MessageDigest digest) {
+        if (digest == null) {
+            return in;
+        }
+        return new DigestInputStream(in, digest) {
+            @Override
+            public boolean markSupported() {
+                return false; // bytes read again after a reset would be hashed twice
+            }
+        };
+    }
+
+    /**
+     * Reads what the archive reader left unread (like the central directory of a zip), so that the copy and the digest
+     * cover the whole download.
+     */
+    private static void drain(InputStream in) throws IOException {
+        byte data[] = new byte[BUFFER_SIZE];
+        while (in.read(data) != -1) {
+            // only the copy and the digest need the bytes
+        }
+    }
+
+    /**
+     * Copies the bytes read through it to another stream.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private long copied;
+        private boolean closed;
+
+        private TeeInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+                copied++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            int count = super.read(data, offset, length);
+            if (count > 0) {
+                copy.write(data, offset, count);
+                copied += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be copied too
+            byte data[] = new byte[BUFFER_SIZE];
+            int count = read(data, 0, (int) Math.min(n, data.length));
+            return Math.max(0, count);
+        }
+
+        @Override
+        public boolean markSupported() {
             return false;
         }
+
+        /**
+         * Closes the copy only, the connection is closed by its {@link Downloader}.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                copy.close();
+            }
+        }
+
+        long getCopied() {
+            return copied;
+        }
     }
 
+    /**
+     * Writes out all entries of zipIn, reporting the compressed bytes read by counter as progress.
+     */
+    private void writeZipEntries(ZipArchiveInputStream zipIn, File to, CountingInputStream counter) throws IOException {
+        ZipArchiveEntry zipEntry;
+        while ((zipEntry = zipIn.getNextZipEntry()) != null) {
+            if (!profile.includes(zipEntry.getName())) {
+                continue;
+            }
+            File destPath = new File(to, zipEntry.getName());
+            if (zipEntry.isDirectory()) {
+                destPath.mkdirs();
+            } else {
+                destPath.getParentFile().mkdirs();
+                writeEntry(zipIn, destPath);
+                meter.set(counter.getBytesRead());
+            }
+        }
+    }
+
+    private void writeTarEntries(TarArchiveInputStream tarIn, File to, CountingInputStream counter) throws IOException {
+        TarArchiveEntry tarEntry;
+        while ((tarEntry = tarIn.getNextTarEntry()) != null) {
+            File destPath = new File(to, tarEntry.getName());
+            if (tarEntry.isDirectory()) {
+                destPath.mkdirs();
+            } else {
+                destPath.getParentFile().mkdirs();
+                writeEntry(tarIn, destPath);
+                meter.set(counter.getBytesRead());
+            }
+            setFilePermissions(destPath, tarEntry.getMode());
+        }
+    }
+
+    private static void writeEntry(InputStream in, File destPath) throws IOException {
+        byte data[] = new byte[BUFFER_SIZE];
+        destPath.delete(); // never write through a hard link into the store
+        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(destPath), BUFFER_SIZE);
+        try {
+            int count;
+            while ((count = in.read(data, 0, BUFFER_SIZE)) != -1) {
+                out.write(data, 0, count);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Moves everything in from into to, merging directories that exist in both and replacing files.
+     */
+    protected static void moveInto(File from, File to) throws IOException {
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            File dest = new File(to, file.getName());
+            if (file.isDirectory() && dest.isDirectory()) {
+                moveInto(file, dest);
+            } else {
+                if (dest.exists()) {
+                    deleteTree(dest);
+                }
+                if (!file.renameTo(dest)) {
+                    throw new IOException("Can't move " + file.getAbsolutePath() + " to " + dest.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes file, and everything in it if it is a directory.
+     */
+    protected static void deleteTree(File file) {
+        TreeRemover.delete(file);
+    }
+
+    /**
+     * Shows a plain percentage on the progress bar.
+     */
     protected void publish(int perc) {
-        publish(new Progress(perc));
+        meter.setPercentage(perc);
     }
 
     protected void publish(String text) {
@@ -100,12 +1040,7 @@ public abstract class DownloadTask extends SwingWorker<Void, Progress> {
     @Override
     protected void process(List<Progress> chunks) {
         for (Progress chunk : chunks) {
-            if (chunk.perc >= 0) {
-                progressBar.setValue(chunk.perc);
-            }
-            if (chunk.text != null) {
-                textArea.append(chunk.text);
-            }
+            textArea.append(chunk.text);
         }
     }
 
@@ -120,49 +1055,33 @@ public abstract class DownloadTask extends SwingWorker<Void, Progress> {
 
         client.download();
 
-        while (!torrent.isComplete()) {
-            publish((int) torrent.getCompletion());
+        meter.begin(torrent.getSize(), torrent.getDownloaded());
+        try {
+            while (!torrent.isComplete()) {
+                meter.set(torrent.getDownloaded());
+                Thread.sleep(PROGRESS_INTERVAL);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Torrent download interrupted", ex);
         }
+        meter.end();
 
     }
 
+    /**
+     * Extracts a .tar.gz archive in a single pass, reporting progress from the compressed bytes consumed.
+     */
     protected void extract(File from, File to) throws IOException {
-
-        TarArchiveInputStream tarIn = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(from)));
-
-        // first calculate the aggregate size for displaying progress
-        publish(0);
-        TarArchiveEntry tarEntry;
-        long size = 0;
-        while ((tarEntry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
-            size += tarEntry.getSize();
-        }
-        tarIn.close();
-
-        // now write out the files
-        long total = 0;
-        tarIn = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(from)));
-        while ((tarEntry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
-            File destPath = new File(to, tarEntry.getName());
-            int mode = tarEntry.getMode();
-            if (tarEntry.isDirectory()) {
-                destPath.mkdirs();
-            } else {
-                destPath.createNewFile();
-                byte data[] = new byte[BUFFER_SIZE];
-                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(destPath), BUFFER_SIZE);
-                int count;
-                while ((count = tarIn.read(data, 0, BUFFER_SIZE)) != -1) {
-                    out.write(data, 0, count);
-                }
-                out.close();
-                total += tarEntry.getSize();
-                publish((int) (total * 100 / size));
-            }
-            setFilePermissions(destPath, mode);
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(from), BUFFER_SIZE));
+        TarArchiveInputStream tarIn = new TarArchiveInputStream(new GzipCompressorInputStream(counter));
+        try {
+            meter.begin(from.length(), 0);
+            writeTarEntries(tarIn, to, counter);
+            meter.end();
+        } finally {
+            tarIn.close();
         }
-        tarIn.close();
-
     }
 
     private static final int OWNER_READ = 256;
@@ -197,42 +1116,94 @@ public abstract class DownloadTask extends SwingWorker<Void, Progress> {
         }
     }
 
+    /**
+     * Extracts a zip archive, inflating the entries in parallel on all cores.  Progress is reported from the
+     * uncompressed sizes listed in the central directory.
+     */
     protected void unzip(File from, File to) throws IOException {
+        unzip(from, to, null);
+    }
 
-        ZipArchiveInputStream zipIn = new ZipArchiveInputStream(new FileInputStream(from));
-
-        // first calculate the aggregate size for displaying progress
-        publish(0);
-        ZipArchiveEntry zipEntry;
-        long size = 0;
-        while ((zipEntry = (ZipArchiveEntry) zipIn.getNextEntry()) != null) {
-            size += zipEntry.getSize();
+    /**
+     * Like {@link #unzip(File, File)}, but skips the entries whose size and CRC-32 match the file in previous, which
+     * may be to itself.  The CRCs of the installed files are cached next to previous, so checking an unchanged file
+     * needs no reading.
+     *
+     * @param previous the folder of the installed version, or null to extract everything
+     * @return the paths of the files of the archive that are part of the install, relative to to
+     */
+    protected List<String> unzip(File from, File to, File previous) throws IOException {
+        ZipExtractor extractor = new ZipExtractor(from, to, profile);
+        CrcIndex index = null;
+        if (previous != null) { // without an installed version the index still saves computing the CRCs next time
+            index = CrcIndex.load(CrcIndex.forFolder(previous));
+            extractor.setUnchanged(previous.isDirectory() ? previous : null, index);
         }
-        zipIn.close();
+        try {
+            meter.begin(extractor.getSize(), 0);
+            extractor.start(Runtime.getRuntime().availableProcessors());
+            while (!extractor.await(PROGRESS_INTERVAL)) {
+                meter.set(extractor.getExtracted());
+            }
+            meter.end();
+            if (index != null) {
+                logger.info(extractor.getUnchanged() + " files unchanged since the installed version");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction interrupted", ex);
+        } finally {
+            extractor.close();
+        }
+        if (index != null) {
+            index.retain(extractor.getPaths());
+            try {
+                index.save(CrcIndex.forFolder(previous));
+            } catch (IOException ex) {
+                logger.warn("Can't save the CRCs of " + to.getAbsolutePath(), ex);
+            }
+        }
+        return extractor.getPaths();
+    }
 
-        // now write out the files
-        long total = 0;
-        zipIn = new ZipArchiveInputStream(new FileInputStream(from));
-        while ((zipEntry = (ZipArchiveEntry) zipIn.getNextEntry()) != null) {
-            File destPath = new File(to, zipEntry.getName());
-            if (zipEntry.isDirectory()) {
-                destPath.mkdirs();
-            } else {
-                File pathFile = new File(destPath.getAbsolutePath().substring(0, destPath.getAbsolutePath().lastIndexOf(File.separator)));
-                pathFile.mkdirs();
-                destPath.createNewFile();
-                byte data[] = new byte[BUFFER_SIZE];
-                BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(destPath), BUFFER_SIZE);
-                int count;
-                while ((count = zipIn.read(data, 0, BUFFER_SIZE)) != -1) {
-                    out.write(data, 0, count);
+    /**
+     * Removes the files below root that are not among paths, except those in files and folders whose name matches
+     * keep, and the folders that leaves empty.  Used after extracting over an installed version.
+     *
+     * @param paths the files of the version installed, relative to root with / as separator
+     */
+    protected void removeObsolete(File root, List<String> paths, Pattern keep) {
+        int removed = removeObsolete(root, "", new HashSet<String>(paths), keep);
+        logger.info("Removed " + removed + " files not in " + root.getName() + " any more");
+    }
+
+    private static int removeObsolete(File dir, String prefix, Set<String> paths, Pattern keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (File file : files) {
+            if (keep.matcher(file.getName()).matches()) {
+                continue;
+            }
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                int count = removeObsolete(file, path + "/", paths, keep);
+                String[] left = file.list();
+                if (count > 0 && left != null && left.length == 0 && !file.delete()) {
+                    logger.error("Can't remove " + file.getAbsolutePath());
+                }
+                removed += count;
+            } else if (!paths.contains(path)) {
+                if (file.delete()) {
+                    removed++;
+                } else {
+                    logger.error("Can't remove " + file.getAbsolutePath());
                 }
-                out.close();
-                total += zipEntry.getSize();
-                publish((int) (total * 100 / size));
             }
         }
-        zipIn.close();
+        return removed;
     }
 
 }
@@ -1,4 +1,3 @@
-
 package com.xmage.launcher;
 
 import java.io.BufferedInputStream;
@@ -11,43 +10,148 @@ import java.net.URL;
  * @author BetaSteward
  */
 public class Downloader {
-        
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
     private BufferedInputStream in;
     private HttpURLConnection conn;
-    private int size;
-   
+    private long size;
+    private boolean partial;
+    private boolean acceptRanges;
+    private long totalSize;
+    private String validator;
+    private int timeout = READ_TIMEOUT;
+
+    /**
+     * Sets the connect and read timeout in milliseconds for the next connect.
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
     public void connect(URL url, String cookies) throws IOException {
-        conn = (HttpURLConnection)url.openConnection();
-        conn.setAllowUserInteraction(false);
-        conn.setInstanceFollowRedirects(true);
-        conn.setRequestProperty("Cookie", cookies);
-        conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
+        connect(url, cookies, -1, -1, null);
+    }
+
+    public void connect(URL url, String cookies, long from, long to) throws IOException {
+        connect(url, cookies, from, to, null);
+    }
+
+    /**
+     * Connects to url asking only for the bytes from..to (inclusive).  A negative from requests the whole file,
+     * a negative to requests everything from the start offset to the end of the file.  Use {@link #isPartial()}
+     * to find out if the server honoured the range.  If ifRange is set the server only sends the range if the file
+     * still has that validator, otherwise it sends the whole (changed) file.
+     */
+    public void connect(URL url, String cookies, long from, long to, String ifRange) throws IOException {
+        conn = openConnection(url, cookies, from, to, ifRange);
 
         while (true) {
             int status = conn.getResponseCode();
             if (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER) {
                 String newUrl = conn.getHeaderField("Location");
-                conn = (HttpURLConnection) new URL(newUrl).openConnection();
-                conn.setRequestProperty("Cookie", cookies);
+                conn = openConnection(new URL(newUrl), cookies, from, to, ifRange);
             }
             else {
                 break;
             }
         }
-        size = conn.getContentLength();
+        partial = conn.getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+        acceptRanges = partial || "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+        size = conn.getContentLengthLong();
+        totalSize = partial ? parseTotalSize(conn.getHeaderField("Content-Range")) : size;
+        validator = conn.getHeaderField("ETag");
+        if (validator == null) {
+            validator = conn.getHeaderField("Last-Modified");
+        }
         in = new BufferedInputStream(conn.getInputStream());
     }
-    
+
+    private static long parseTotalSize(String contentRange) {
+        // bytes <from>-<to>/<total>, where total may be *
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            try {
+                return Long.parseLong(contentRange.substring(slash + 1).trim());
+            } catch (NumberFormatException ex) {
+                // unknown total size
+            }
+        }
+        return -1;
+    }
+
+    private HttpURLConnection openConnection(URL url, String cookies, long from, long to, String ifRange) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setAllowUserInteraction(false);
+        connection.setConnectTimeout(Math.min(timeout, CONNECT_TIMEOUT));
+        connection.setReadTimeout(timeout);
+        connection.setInstanceFollowRedirects(true);
+        connection.setRequestProperty("Cookie", cookies);
+        connection.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
+        if (from >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + (to >= 0 ? Long.toString(to) : ""));
+            if (ifRange != null) {
+                connection.setRequestProperty("If-Range", ifRange);
+            }
+        }
+        return connection;
+    }
+
     public BufferedInputStream getInputStream() {
         return in;
     }
-    
+
     public void disconnect() throws IOException {
-        in.close();
-        conn.disconnect();
+        if (in != null) {
+            in.close();
+        }
+        if (conn != null) {
+            conn.disconnect();
+        }
     }
-    
-    public int getSize() {
+
+    /**
+     * Drops the connection without reading the rest of the response, also unblocking a read in another thread.
+     */
+    public void abort() {
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * @return the length of the response body, which is the length of the range for partial responses
+     */
+    public long getSize() {
         return size;
     }
+
+    /**
+     * @return the length of the whole file, or -1 if unknown
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * @return the ETag (or if missing the Last-Modified date) identifying this version of the file, or null
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    /**
+     * @return true if the server answered a range request with 206 Partial Content
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @return true if the server advertised (or already honoured) byte range requests
+     */
+    public boolean acceptsRanges() {
+        return acceptRanges;
+    }
 }
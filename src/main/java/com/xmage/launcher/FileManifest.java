@@ -0,0 +1,182 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The list of files making up an XMage release, one line per file:
+ * <pre>&lt;sha256&gt; &lt;size&gt; &lt;path&gt;</pre>
+ * Paths are relative to the xmage folder and use / as separator.  Empty lines and lines starting with # are
+ * ignored.
+ */
+public final class FileManifest {
+
+    public static final class Entry {
+        private final String path;
+        private final long size;
+        private final String sha256;
+
+        Entry(String path, long size, String sha256) {
+            this.path = path;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private FileManifest(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @throws IOException if reading fails or a line is malformed
+     */
+    public static FileManifest parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader, 64 * 1024);
+        List<Entry> entries = new ArrayList<Entry>();
+        String line;
+        int number = 0;
+        while ((line = in.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+", 3);
+            try {
+                if (fields.length < 3 || fields[0].length() != 64 || !isSafe(fields[2])) {
+                    throw new NumberFormatException();
+                }
+                entries.add(new Entry(fields[2], Long.parseLong(fields[1]), fields[0].toLowerCase()));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid file manifest entry at line " + number + ": " + line);
+            }
+        }
+        return new FileManifest(entries);
+    }
+
+    /**
+     * Lists and hashes (in parallel) all files below root, so that an install without a published manifest, like
+     * Java, can be verified later.
+     */
+    public static FileManifest create(File root, int threads) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        list(root, "", paths);
+        ExecutorService hashers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+            for (final String path : paths) {
+                final File file = new File(root, path);
+                results.add(hashers.submit(new Callable<Entry>() {
+                    @Override
+                    public Entry call() throws IOException {
+                        return new Entry(path, file.length(), Hashing.sha256(file));
+                    }
+                }));
+            }
+            List<Entry> entries = new ArrayList<Entry>();
+            for (Future<Entry> result : results) {
+                entries.add(result.get());
+            }
+            return new FileManifest(entries);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Hashing " + root + " interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        } finally {
+            hashers.shutdownNow();
+        }
+    }
+
+    private static void list(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                list(file, prefix + file.getName() + "/", paths);
+            } else if (file.isFile()) {
+                paths.add(prefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest in the format read by {@link #parse(Reader)}, replacing file only once it is complete.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (Entry entry : entries) {
+                out.write(entry.getSha256() + " " + entry.getSize() + " " + entry.getPath() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Rejects paths that would end up outside the xmage folder.
+     */
+    private static boolean isSafe(String path) {
+        if (path.startsWith("/") || path.contains("\\") || path.contains(":")) {
+            return false;
+        }
+        for (String part : path.split("/")) {
+            if (part.equals("..")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the manifest of the files that are part of an install with profile
+     */
+    public FileManifest filter(InstallProfile profile) {
+        List<Entry> included = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (profile.includes(entry.getPath())) {
+                included.add(entry);
+            }
+        }
+        return new FileManifest(included);
+    }
+
+}
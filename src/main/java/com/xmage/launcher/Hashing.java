@@ -0,0 +1,83 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 helpers for checking downloads against the hashes published in config.json.
+ */
+public final class Hashing {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+    // a mapping keeps the file locked on Windows until the buffer is collected, so it couldn't be replaced afterwards
+    private static final boolean MAP = Utilities.getOS() != Utilities.OS.WIN;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Hashing() {
+    }
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex); // every JRE has to provide it
+        }
+    }
+
+    /**
+     * Feeds the whole content of file to digest.  Files larger than the read buffer are memory mapped, which saves
+     * copying them through the heap.
+     */
+    public static void update(MessageDigest digest, File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long size = channel.size();
+            if (MAP && size > BUFFER_SIZE) {
+                for (long position = 0; position < size; position += MAP_SIZE) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position)));
+                }
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return the SHA-256 of file as lower case hex
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newSha256();
+        update(digest, file);
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return true if hash is the hex form of digest, in either case
+     */
+    public static boolean matches(String hash, byte[] digest) {
+        return hash.equalsIgnoreCase(toHex(digest));
+    }
+
+}
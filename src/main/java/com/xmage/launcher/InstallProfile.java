@@ -0,0 +1,74 @@
+package com.xmage.launcher;
+
+import java.io.File;
+
+/**
+ * Which parts of XMage are installed.  Headless servers have no use for the client and its assets, and players who
+ * only join remote servers don't need the server.
+ */
+public enum InstallProfile {
+
+    FULL("Full", null),
+    SERVER("Server only", "mage-client/"),
+    CLIENT("Client only", "mage-server/");
+
+    // the folders of the parts a profile may leave out
+    private static final String[] PARTS = {"mage-client/", "mage-server/"};
+
+    private final String title;
+    private final String excluded;
+
+    InstallProfile(String title, String excluded) {
+        this.title = title;
+        this.excluded = excluded;
+    }
+
+    /**
+     * @param path a path relative to the xmage folder, with / as separator
+     * @return true if the file at path is part of the install
+     */
+    public boolean includes(String path) {
+        return excluded == null || !path.startsWith(excluded);
+    }
+
+    /**
+     * @param part a part of the install, e.g. mage-client/
+     * @return true if the folder of part is in xmageFolder or this profile leaves part out
+     */
+    public boolean hasPart(File xmageFolder, String part) {
+        return !includes(part) || new File(xmageFolder, part).isDirectory();
+    }
+
+    /**
+     * @return true if every part of this profile is in xmageFolder, which isn't so after switching to a profile with
+     * more parts than the installed one
+     */
+    public boolean isInstalledIn(File xmageFolder) {
+        for (String part : PARTS) {
+            if (!hasPart(xmageFolder, part)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the name of the XMage component holding just this part in config.json, null for the full install
+     */
+    public String getComponent() {
+        return this == FULL ? null : name().toLowerCase();
+    }
+
+    /**
+     * @return the suffix telling apart the versions kept in the store for this profile
+     */
+    public String getRefSuffix() {
+        return this == FULL ? "" : "-" + name().toLowerCase();
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+
+}
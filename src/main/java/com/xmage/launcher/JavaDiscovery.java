@@ -0,0 +1,378 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds the Java runtimes installed on this computer outside of the launcher: JAVA_HOME, the java on the PATH and the
+ * folders JDKs are usually installed to by packages, installers, SDKMAN and IDEs.  Each candidate is asked for its
+ * version by starting it, all of them at once; the answers are cached by path and modification time of the java
+ * executable, so later checks only start runtimes that were installed or updated since.
+ */
+public class JavaDiscovery {
+
+    private static final Logger logger = LoggerFactory.getLogger(JavaDiscovery.class);
+    private static final Pattern PROPERTY = Pattern.compile("^\\s*([\\w.]+) = (.*)$");
+    private static final String UNUSABLE = "-";
+    private static final int PROBE_TIMEOUT = 10; // seconds
+
+    /**
+     * A runtime found, with what it reported about itself.
+     */
+    public static final class Installation {
+        private final File home;
+        private final String version;
+        private final String arch;
+
+        public Installation(File home, String version, String arch) {
+            this.home = home;
+            this.version = version;
+            this.arch = arch;
+        }
+
+        public File getHome() {
+            return home;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public String getArch() {
+            return arch;
+        }
+
+        @Override
+        public String toString() {
+            return version + " (" + arch + ") " + home.getAbsolutePath();
+        }
+    }
+
+    private static final class Probe {
+        private final long modified;
+        private final String version;
+        private final String arch;
+
+        private Probe(long modified, String version, String arch) {
+            this.modified = modified;
+            this.version = version;
+            this.arch = arch;
+        }
+    }
+
+    private final File cacheFile;
+    private final Map<String, Probe> cache = new ConcurrentHashMap<String, Probe>();
+
+    /**
+     * @param cacheFile where the answers of the runtimes are kept between starts
+     */
+    public JavaDiscovery(File cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * @return the runtime closest to requiredJava without being older, since that is what XMage is tested with, or
+     * null if none is new enough
+     */
+    public Installation find(String requiredJava) {
+        return find(discover(), requiredJava);
+    }
+
+    /**
+     * @return the one of runtimes closest to requiredJava without being older, or null if none is new enough
+     */
+    public static Installation find(List<Installation> runtimes, String requiredJava) {
+        DefaultArtifactVersion required = new DefaultArtifactVersion(requiredJava);
+        Installation found = null;
+        for (Installation runtime : runtimes) {
+            DefaultArtifactVersion version = new DefaultArtifactVersion(runtime.getVersion());
+            if (version.compareTo(required) >= 0 && (found == null || version.compareTo(new DefaultArtifactVersion(found.getVersion())) < 0)) {
+                found = runtime;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the usable runtimes in the usual locations, newest first
+     */
+    public synchronized List<Installation> discover() {
+        return discover(getCandidates());
+    }
+
+    /**
+     * @return the usable runtimes of candidates, newest first
+     */
+    synchronized List<Installation> discover(Set<File> candidates) {
+        load();
+        List<Installation> runtimes = new ArrayList<Installation>();
+        List<Future<Installation>> probes = new ArrayList<Future<Installation>>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(candidates.size(), 8)));
+        try {
+            for (final File home : candidates) {
+                probes.add(executor.submit(new Callable<Installation>() {
+                    @Override
+                    public Installation call() {
+                        return probe(home);
+                    }
+                }));
+            }
+            for (Future<Installation> probe : probes) {
+                try {
+                    Installation runtime = probe.get();
+                    if (runtime != null) {
+                        runtimes.add(runtime);
+                    }
+                } catch (ExecutionException ex) {
+                    logger.warn("Can't probe a Java runtime", ex.getCause());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Set<String> paths = new LinkedHashSet<String>();
+        for (File home : candidates) {
+            paths.add(home.getAbsolutePath());
+        }
+        cache.keySet().retainAll(paths); // forget uninstalled runtimes
+        save();
+        Collections.sort(runtimes, new Comparator<Installation>() {
+            @Override
+            public int compare(Installation r1, Installation r2) {
+                return new DefaultArtifactVersion(r2.getVersion()).compareTo(new DefaultArtifactVersion(r1.getVersion()));
+            }
+        });
+        return runtimes;
+    }
+
+    /**
+     * @return the runtime in home, from the cache if its java hasn't changed since it was asked, or null if it can't
+     * be started
+     */
+    private Installation probe(File home) {
+        File java = getJava(home);
+        long modified = java.lastModified();
+        Probe probe = cache.get(home.getAbsolutePath());
+        if (probe == null || probe.modified != modified) {
+            probe = new Probe(modified, UNUSABLE, UNUSABLE);
+            long start = System.currentTimeMillis();
+            try {
+                Map<String, String> properties = readProperties(java);
+                String version = properties.get("java.version");
+                if (version != null) {
+                    String arch = properties.get("os.arch");
+                    probe = new Probe(modified, version, arch == null ? UNUSABLE : arch);
+                }
+            } catch (IOException ex) {
+                logger.warn("Can't start " + java.getAbsolutePath() + ": " + ex.getMessage());
+            }
+            logger.info("Probed " + home.getAbsolutePath() + ": " + probe.version + " in " + (System.currentTimeMillis() - start) + " ms");
+            cache.put(home.getAbsolutePath(), probe);
+        }
+        return probe.version.equals(UNUSABLE) ? null : new Installation(home, probe.version, probe.arch);
+    }
+
+    private static Map<String, String> readProperties(File java) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(java.getAbsolutePath(), "-XshowSettings:properties", "-version");
+        pb.redirectErrorStream(true);
+        final Process process = pb.start();
+        Map<String, String> properties = new HashMap<String, String>();
+        Thread watchdog = new Thread("Java probe " + java.getAbsolutePath()) {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(PROBE_TIMEOUT * 1000L);
+                    process.destroy(); // e.g. waiting for a dialog of a broken install
+                } catch (InterruptedException ex) {
+                    // answered in time
+                }
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher matcher = PROPERTY.matcher(line);
+                if (matcher.matches()) {
+                    properties.put(matcher.group(1), matcher.group(2).trim());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("exit value " + process.exitValue());
+            }
+        } catch (InterruptedException ex) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted");
+        } finally {
+            watchdog.interrupt();
+        }
+        return properties;
+    }
+
+    /**
+     * @return the Java homes in the usual locations, without the runtimes installed by the launcher
+     */
+    public static Set<File> getCandidates() {
+        Set<File> candidates = new LinkedHashSet<File>();
+        String javaHome = System.getenv("JAVA_HOME");
+        if (javaHome != null && !javaHome.isEmpty()) {
+            addHome(candidates, new File(javaHome));
+        }
+        addHome(candidates, new File(System.getProperty("java.home")));
+        String path = System.getenv("PATH");
+        if (path != null) {
+            for (String dir : path.split(Pattern.quote(File.pathSeparator))) {
+                File java = new File(dir, Utilities.getOS() == Utilities.OS.WIN ? "java.exe" : "java");
+                if (java.isFile()) {
+                    try {
+                        // e.g. /usr/bin/java, a link to /usr/lib/jvm/<runtime>/bin/java
+                        addHome(candidates, java.getCanonicalFile().getParentFile().getParentFile());
+                    } catch (IOException ex) {
+                        logger.warn("Can't resolve " + java.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        String userHome = System.getProperty("user.home");
+        List<File> roots = new ArrayList<File>();
+        roots.add(new File(userHome, ".sdkman/candidates/java"));
+        roots.add(new File(userHome, ".jdks"));
+        switch (Utilities.getOS()) {
+            case WIN:
+                for (String programs : new String[]{System.getenv("ProgramFiles"), System.getenv("ProgramFiles(x86)")}) {
+                    if (programs != null) {
+                        for (String vendor : new String[]{"Java", "Eclipse Adoptium", "Eclipse Foundation", "AdoptOpenJDK", "Zulu", "Amazon Corretto", "Microsoft", "BellSoft"}) {
+                            roots.add(new File(programs, vendor));
+                        }
+                    }
+                }
+                break;
+            case OSX:
+                roots.add(new File("/Library/Java/JavaVirtualMachines"));
+                roots.add(new File(userHome, "Library/Java/JavaVirtualMachines"));
+                break;
+            default:
+                roots.add(new File("/usr/lib/jvm"));
+                roots.add(new File("/usr/java"));
+                roots.add(new File("/opt/java"));
+                break;
+        }
+        for (File root : roots) {
+            File[] homes = root.listFiles();
+            if (homes != null) {
+                for (File home : homes) {
+                    addHome(candidates, home);
+                    addHome(candidates, new File(home, "Contents/Home")); // macOS bundles
+                }
+            }
+        }
+        File installPath = Utilities.getInstallPath();
+        if (installPath != null) {
+            String own = new File(installPath, "java").getAbsolutePath() + File.separator;
+            for (File candidate : new ArrayList<File>(candidates)) {
+                if (candidate.getAbsolutePath().startsWith(own)) {
+                    candidates.remove(candidate);
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static void addHome(Set<File> candidates, File home) {
+        if (getJava(home).isFile()) {
+            try {
+                candidates.add(home.getCanonicalFile()); // the same runtime is often found through several links
+            } catch (IOException ex) {
+                candidates.add(home.getAbsoluteFile());
+            }
+        }
+    }
+
+    private static File getJava(File home) {
+        File java = new File(home, "bin" + File.separator + "java.exe");
+        return java.isFile() ? java : new File(home, "bin" + File.separator + "java");
+    }
+
+    private void load() {
+        cache.clear();
+        if (!cacheFile.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ", 4);
+                    if (fields.length == 4) {
+                        cache.put(fields[3], new Probe(Long.parseLong(fields[0]), fields[1], fields[2]));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Can't read " + cacheFile.getAbsolutePath() + ", probing again", ex);
+            cache.clear();
+        } catch (NumberFormatException ex) {
+            logger.warn("Damaged " + cacheFile.getAbsolutePath() + ", probing again");
+            cache.clear();
+        }
+    }
+
+    private void save() {
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (Map.Entry<String, Probe> entry : cache.entrySet()) {
+                    Probe probe = entry.getValue();
+                    out.write(probe.modified + " " + probe.version + " " + probe.arch + " " + entry.getKey() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.warn("Can't write " + cacheFile.getAbsolutePath(), ex);
+        }
+    }
+
+}
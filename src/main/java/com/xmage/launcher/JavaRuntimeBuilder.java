@@ -0,0 +1,234 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a Java runtime with just the modules XMage uses from a JDK on this computer, instead of downloading a full
+ * JRE.  The modules are found by running jdeps over the jars of XMage, the runtime is linked by jlink without debug
+ * information, headers and man pages, and gets a class data sharing archive of its own classes so it starts as fast as
+ * a full runtime.
+ */
+public final class JavaRuntimeBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(JavaRuntimeBuilder.class);
+    private static final Pattern MODULE_LIST = Pattern.compile("[\\w.]+(,[\\w.]+)*");
+    // the first JDK whose jdeps has --print-module-deps and --ignore-missing-deps
+    private static final int MIN_MAJOR = 11;
+    // used without jdeps seeing it: elliptic curve TLS, non-default charsets and sun.misc.Unsafe via reflection
+    private static final List<String> EXTRA_MODULES = Arrays.asList("jdk.crypto.ec", "jdk.charsets", "jdk.unsupported");
+    // all of Java SE, for when jdeps fails
+    private static final String ALL_MODULES = "java.se";
+
+    private JavaRuntimeBuilder() {
+    }
+
+    /**
+     * @param installed the runtimes found on this computer by {@link JavaDiscovery#discover()}
+     * @return the JDK to build with, from JAVA_HOME, the one running the launcher or one of installed, or null if there
+     * is none
+     */
+    public static File findJdk(String requiredJava, List<JavaDiscovery.Installation> installed) {
+        List<File> candidates = new ArrayList<File>();
+        String javaHome = System.getenv("JAVA_HOME");
+        if (javaHome != null && !javaHome.isEmpty()) {
+            candidates.add(new File(javaHome));
+        }
+        candidates.add(new File(System.getProperty("java.home")));
+        for (JavaDiscovery.Installation installation : installed) {
+            candidates.add(installation.getHome());
+        }
+        return findJdk(candidates, requiredJava);
+    }
+
+    /**
+     * @return the first of candidates that is a JDK with jlink, jdeps and the module files of at least requiredJava,
+     * or null if there is none
+     */
+    public static File findJdk(Collection<File> candidates, String requiredJava) {
+        for (File candidate : candidates) {
+            if (isJdk(candidate, requiredJava)) {
+                logger.info("Building Java with " + candidate.getAbsolutePath());
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if javaHome is a JDK of at least requiredJava that can build a runtime
+     */
+    public static boolean isJdk(File javaHome, String requiredJava) {
+        String version = ClassDataSharing.getJavaVersion(javaHome);
+        if (version == null || ClassDataSharing.getMajorVersion(version) < MIN_MAJOR
+                || new DefaultArtifactVersion(version).compareTo(new DefaultArtifactVersion(requiredJava)) < 0) {
+            return false;
+        }
+        return tool(javaHome, "jlink") != null && tool(javaHome, "jdeps") != null && new File(javaHome, "jmods").isDirectory();
+    }
+
+    /**
+     * @return the modules the classes in jars use, as found by jdeps, with those used through reflection
+     */
+    public static Set<String> findModules(File jdk, List<File> jars) {
+        Set<String> modules = new TreeSet<String>();
+        if (!jars.isEmpty()) {
+            StringBuilder classPath = new StringBuilder();
+            for (File jar : jars) {
+                if (classPath.length() > 0) {
+                    classPath.append(File.pathSeparatorChar);
+                }
+                classPath.append(jar.getAbsolutePath());
+            }
+            List<String> command = new ArrayList<String>();
+            command.add(tool(jdk, "jdeps").getAbsolutePath());
+            command.add("--print-module-deps");
+            command.add("--ignore-missing-deps");
+            command.add("--multi-release");
+            command.add(Integer.toString(ClassDataSharing.getMajorVersion(ClassDataSharing.getJavaVersion(jdk))));
+            command.add("--class-path");
+            command.add(classPath.toString());
+            for (File jar : jars) {
+                command.add(jar.getAbsolutePath());
+            }
+            try {
+                modules.addAll(parseModules(run(command)));
+            } catch (IOException ex) {
+                logger.warn("Can't find the modules used, linking all of Java SE", ex);
+            }
+        }
+        if (modules.isEmpty()) {
+            modules.add(ALL_MODULES);
+        }
+        for (String module : EXTRA_MODULES) {
+            if (new File(jdk, "jmods" + File.separator + module + ".jmod").isFile()) {
+                modules.add(module);
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * @return the modules listed by jdeps --print-module-deps: the last line of output that is a list of them, after
+     * any warnings
+     */
+    static Set<String> parseModules(String output) {
+        Set<String> modules = new TreeSet<String>();
+        String[] lines = output.split("\\r?\\n");
+        for (int i = lines.length - 1; i >= 0; i--) {
+            String line = lines[i].trim();
+            if (MODULE_LIST.matcher(line).matches() && line.contains(".")) {
+                modules.addAll(Arrays.asList(line.split(",")));
+                break;
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * @return the modules of the runtime in javaHome, empty if it doesn't list them
+     */
+    public static Set<String> getModules(File javaHome) {
+        Set<String> modules = new TreeSet<String>();
+        String list = ClassDataSharing.getReleaseProperty(javaHome, "MODULES");
+        if (list != null) {
+            for (String module : list.split("\\s+")) {
+                if (!module.isEmpty()) {
+                    modules.add(module);
+                }
+            }
+        }
+        return modules;
+    }
+
+    /**
+     * Links a runtime with modules from jdk into output, which must not exist yet.
+     */
+    public static void build(File jdk, Collection<String> modules, File output) throws IOException {
+        StringBuilder list = new StringBuilder();
+        for (String module : modules) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(module);
+        }
+        output.getParentFile().mkdirs();
+        // not compressed: the runtime is never downloaded, and compressed modules load slower
+        List<String> command = new ArrayList<String>();
+        command.add(tool(jdk, "jlink").getAbsolutePath());
+        command.add("--module-path");
+        command.add(new File(jdk, "jmods").getAbsolutePath());
+        command.add("--add-modules");
+        command.add(list.toString());
+        command.add("--strip-debug");
+        command.add("--no-header-files");
+        command.add("--no-man-pages");
+        command.add("--output");
+        command.add(output.getAbsolutePath());
+        long start = System.currentTimeMillis();
+        run(command);
+        logger.info("Linked " + output.getAbsolutePath() + " in " + (System.currentTimeMillis() - start) + " ms");
+
+        // jlink leaves out the default class data sharing archive, which the archives of XMage are built on
+        command = new ArrayList<String>();
+        command.add(new File(output, "bin" + File.separator + "java").getAbsolutePath());
+        command.add("-Xshare:dump");
+        try {
+            run(command);
+        } catch (IOException ex) {
+            logger.warn("Can't dump the class data sharing archive of " + output.getAbsolutePath(), ex);
+        }
+    }
+
+    private static File tool(File javaHome, String name) {
+        File tool = new File(javaHome, "bin" + File.separator + name);
+        if (tool.isFile()) {
+            return tool;
+        }
+        tool = new File(javaHome, "bin" + File.separator + name + ".exe");
+        return tool.isFile() ? tool : null;
+    }
+
+    /**
+     * @return the output of command
+     * @throws IOException if it can't be run or exits with an error
+     */
+    private static String run(List<String> command) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(true);
+        Process process = pb.start();
+        StringBuilder output = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                output.append(line).append('\n');
+            }
+        } finally {
+            in.close();
+        }
+        try {
+            int exitValue = process.waitFor();
+            if (exitValue != 0) {
+                throw new IOException(new File(command.get(0)).getName() + " failed with exit value " + exitValue + ": " + output);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted running " + command.get(0));
+        }
+        return output.toString();
+    }
+
+}
@@ -0,0 +1,297 @@
+package com.xmage.launcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Java runtimes installed by the launcher, side by side in the java folder as &lt;version&gt;-&lt;variant&gt;, e.g.
+ * 1.8.0_201-windows-x64 for a downloaded JRE or 17.0.9-jlink for one built with jlink.  Installing a new runtime
+ * leaves the others, so going back to one costs no download.  Runtimes used by nothing any more are removed, the most
+ * recently used first kept up to a number.
+ */
+public class JavaStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(JavaStore.class);
+    private static final Pattern KEY_CHARS = Pattern.compile("[^A-Za-z0-9._-]");
+    private static final String REGISTRY = "runtimes";
+    // the processes started with a runtime, by its folder, shared by all stores since each caller makes its own
+    private static final Map<File, List<Process>> RUNNING = new HashMap<File, List<Process>>();
+
+    private static final class Installed {
+        private final String version;
+        private long lastUsed;
+
+        private Installed(String version, long lastUsed) {
+            this.version = version;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final File folder;
+    private final Map<String, Installed> runtimes = new LinkedHashMap<String, Installed>();
+
+    /**
+     * @param folder the java folder of the install
+     */
+    public JavaStore(File folder) {
+        this.folder = folder;
+        load();
+    }
+
+    /**
+     * @return the key of the runtime of version, e.g. for the platform it was downloaded for
+     */
+    public static String getKey(String version, String variant) {
+        return KEY_CHARS.matcher(version + "-" + variant).replaceAll("_");
+    }
+
+    /**
+     * @return the folder the runtime with key is installed to
+     */
+    public File getFolder(String key) {
+        return new File(folder, key);
+    }
+
+    /**
+     * @return the file manifest of the runtime with key, recorded when it was installed to verify it later
+     */
+    public File getFilesRecord(String key) {
+        return new File(folder, key + ".files");
+    }
+
+    /**
+     * @return true if the runtime with key is installed
+     */
+    public synchronized boolean contains(String key) {
+        return key != null && runtimes.containsKey(key) && getFolder(key).isDirectory();
+    }
+
+    public synchronized String getVersion(String key) {
+        Installed runtime = runtimes.get(key);
+        return runtime == null ? null : runtime.version;
+    }
+
+    /**
+     * @return the Java home of the runtime with key, laid out as the JRE archives are
+     */
+    public File getJavaHome(String key) {
+        return Utilities.getLocalJavaHome(getFolder(key), getVersion(key));
+    }
+
+    /**
+     * @return the keys of the installed runtimes, newest version first
+     */
+    public synchronized List<String> getKeys() {
+        List<String> keys = new ArrayList<String>();
+        for (String key : runtimes.keySet()) {
+            if (contains(key)) {
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                return new DefaultArtifactVersion(getVersion(key2)).compareTo(new DefaultArtifactVersion(getVersion(key1)));
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * Records the runtime of version just installed to the folder of key.
+     */
+    public synchronized void add(String key, String version) {
+        runtimes.put(key, new Installed(version, System.currentTimeMillis()));
+        save();
+    }
+
+    /**
+     * Records that the runtime with key is started, which keeps it longest once it isn't used any more.
+     */
+    public synchronized void markUsed(String key) {
+        Installed runtime = runtimes.get(key);
+        if (runtime != null) {
+            runtime.lastUsed = System.currentTimeMillis();
+            save();
+        }
+    }
+
+    /**
+     * Records that process was started with the runtime with key, which isn't removed while the process runs.
+     */
+    public void started(String key, Process process) {
+        synchronized (RUNNING) {
+            File runtime = getFolder(key).getAbsoluteFile();
+            List<Process> processes = RUNNING.get(runtime);
+            if (processes == null) {
+                processes = new ArrayList<Process>();
+                RUNNING.put(runtime, processes);
+            }
+            processes.add(process);
+        }
+    }
+
+    /**
+     * @return true if a process started with the runtime with key still runs
+     */
+    public boolean isRunning(String key) {
+        synchronized (RUNNING) {
+            File runtime = getFolder(key).getAbsoluteFile();
+            List<Process> processes = RUNNING.get(runtime);
+            if (processes == null) {
+                return false;
+            }
+            for (Iterator<Process> it = processes.iterator(); it.hasNext(); ) {
+                try {
+                    it.next().exitValue();
+                    it.remove();
+                } catch (IllegalThreadStateException ex) {
+                    return true; // not exited yet
+                }
+            }
+            RUNNING.remove(runtime);
+            return false;
+        }
+    }
+
+    /**
+     * Moves the runtime of version that earlier launchers installed directly into the java folder into a folder of
+     * its own.
+     *
+     * @return the key of the runtime, or null if there is none
+     */
+    public synchronized String migrate(String version, String variant) {
+        String key = getKey(version, variant);
+        for (String name : new String[]{"jre" + version, "jre" + version + ".jre"}) {
+            File legacy = new File(folder, name);
+            if (legacy.isDirectory()) {
+                File to = getFolder(key);
+                to.mkdirs();
+                try {
+                    Files.move(legacy.toPath(), new File(to, name).toPath());
+                } catch (IOException ex) {
+                    logger.error("Can't move " + legacy.getAbsolutePath() + " to " + to.getAbsolutePath(), ex);
+                    return null;
+                }
+                logger.info("Moved " + legacy.getAbsolutePath() + " to " + to.getAbsolutePath());
+                add(key, version);
+                return key;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the runtimes none of references (keys, which may repeat) uses and no started process still runs with,
+     * except for the keep most recently used.
+     *
+     * @return the keys of the runtimes removed
+     */
+    public synchronized List<String> clean(Collection<String> references, int keep) {
+        Set<String> used = new HashSet<String>(references);
+        List<String> unused = new ArrayList<String>();
+        for (String key : runtimes.keySet()) {
+            if (!used.contains(key)) {
+                if (isRunning(key)) {
+                    logger.info("Keeping the unused Java " + key + " while it runs");
+                } else {
+                    unused.add(key);
+                }
+            }
+        }
+        Collections.sort(unused, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                long used1 = runtimes.get(key1).lastUsed;
+                long used2 = runtimes.get(key2).lastUsed;
+                return used1 > used2 ? -1 : used1 < used2 ? 1 : 0;
+            }
+        });
+        List<String> removed = new ArrayList<String>();
+        for (String key : unused.subList(Math.min(keep, unused.size()), unused.size())) {
+            File runtime = getFolder(key);
+            if (runtime.isDirectory() && !TreeRemover.moveToTrash(runtime)) {
+                TreeRemover.delete(runtime);
+            }
+            File record = getFilesRecord(key);
+            if (record.isFile() && !record.delete()) {
+                logger.error("Can't remove " + record.getAbsolutePath());
+            }
+            logger.info("Removed the unused Java " + key);
+            runtimes.remove(key);
+            removed.add(key);
+        }
+        if (!removed.isEmpty()) {
+            save();
+        }
+        return removed;
+    }
+
+    private void load() {
+        File registry = new File(folder, REGISTRY);
+        if (!registry.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(registry), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length == 3) {
+                        runtimes.put(fields[0], new Installed(fields[1], Long.parseLong(fields[2])));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Can't read " + registry.getAbsolutePath(), ex);
+        } catch (NumberFormatException ex) {
+            logger.warn("Damaged " + registry.getAbsolutePath());
+        }
+    }
+
+    private void save() {
+        File registry = new File(folder, REGISTRY);
+        File temp = new File(registry.getPath() + ".tmp");
+        try {
+            folder.mkdirs();
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (Map.Entry<String, Installed> entry : runtimes.entrySet()) {
+                    out.write(entry.getKey() + " " + entry.getValue().version + " " + entry.getValue().lastUsed + "\n");
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), registry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            logger.error("Can't write " + registry.getAbsolutePath(), ex);
+        }
+    }
+
+}
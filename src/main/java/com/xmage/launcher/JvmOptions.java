@@ -0,0 +1,297 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks the JVM options for XMage from the hardware and the Java version it runs on, instead of a fixed set that is
+ * too small for a busy server and partly refused by current JVMs.  Options set by the user are added and win over the
+ * picked ones of the same kind; options the target JVM doesn't know any more (or yet) are dropped from both, since an
+ * unrecognized option keeps the JVM from starting.
+ */
+public final class JvmOptions {
+
+    private static final Logger logger = LoggerFactory.getLogger(JvmOptions.class);
+    private static final long MB = 1024L * 1024L;
+    private static final long GB = 1024L * MB;
+    private static final Pattern XX = Pattern.compile("-XX:[+-]?(\\w+).*");
+    private static final Pattern GC = Pattern.compile("-XX:\\+Use\\w*GC");
+    private static final Pattern SIZE = Pattern.compile("-X(mx|ms|ss).*");
+
+    /**
+     * The kinds of processes there are options for.
+     */
+    public enum Preset {
+
+        CLIENT("Low-latency client"),
+        SERVER("Throughput server");
+
+        private final String title;
+
+        Preset(String title) {
+            this.title = title;
+        }
+
+        @Override
+        public String toString() {
+            return title;
+        }
+    }
+
+    /**
+     * The memory and cores available to a process started by the launcher.
+     */
+    public static final class Hardware {
+        private final long memory;
+        private final int cores;
+
+        public Hardware(long memory, int cores) {
+            this.memory = memory;
+            this.cores = cores;
+        }
+
+        /**
+         * @return the physical memory and cores of this computer, lowered to the limits of the container (cgroup) the
+         * launcher runs in, if any
+         */
+        public static Hardware detect() {
+            long memory = getPhysicalMemory();
+            long limit = readCgroupMemoryLimit();
+            if (limit > 0 && (memory <= 0 || limit < memory)) {
+                memory = limit;
+            }
+            if (memory <= 0) {
+                memory = 2 * GB; // unknown, assume a small machine
+            }
+            int cores = Runtime.getRuntime().availableProcessors();
+            int quota = readCgroupCpuLimit();
+            if (quota > 0 && quota < cores) {
+                cores = quota;
+            }
+            return new Hardware(memory, cores);
+        }
+
+        public long getMemory() {
+            return memory;
+        }
+
+        public int getCores() {
+            return cores;
+        }
+
+        @Override
+        public String toString() {
+            return memory / MB + " MB, " + cores + " cores";
+        }
+    }
+
+    /**
+     * Options known to exist only in some Java versions: name, first and last feature release accepting it.
+     */
+    private static final Object[][] VERSIONED = {
+        {"MaxPermSize", 0, 7},
+        {"PermSize", 0, 7},
+        {"CMSClassUnloadingEnabled", 0, 13},
+        {"UseConcMarkSweepGC", 0, 13},
+        {"CMSIncrementalMode", 0, 8},
+        {"UseParNewGC", 0, 9},
+        {"AggressiveOpts", 0, 11},
+        {"MetaspaceSize", 8, Integer.MAX_VALUE},
+        {"MaxMetaspaceSize", 8, Integer.MAX_VALUE},
+        {"UseZGC", 15, Integer.MAX_VALUE},
+        {"UseShenandoahGC", 15, Integer.MAX_VALUE}
+    };
+
+    private JvmOptions() {
+    }
+
+    /**
+     * @return the options picked for preset, the user options and then the options needed for javaMajor
+     */
+    public static List<String> build(Preset preset, String userOptions, Hardware hardware, int javaMajor) {
+        List<String> user = new ArrayList<String>();
+        for (String option : userOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                user.add(option);
+            }
+        }
+        user = filter(user, javaMajor); // a dropped user option mustn't replace a picked one
+        Set<String> userKinds = new HashSet<String>();
+        for (String option : user) {
+            userKinds.add(kind(option));
+        }
+        List<String> options = new ArrayList<String>();
+        for (String option : pick(preset, hardware, javaMajor)) {
+            if (!userKinds.contains(kind(option))) {
+                options.add(option);
+            }
+        }
+        options.addAll(user);
+        return filter(options, javaMajor);
+    }
+
+    /**
+     * @return the options for preset on hardware with Java version javaMajor (0 if unknown)
+     */
+    public static List<String> pick(Preset preset, Hardware hardware, int javaMajor) {
+        List<String> options = new ArrayList<String>();
+        long memory = hardware.getMemory();
+        int cores = hardware.getCores();
+        if (preset == Preset.SERVER) {
+            // a fixed heap of half the memory (1 to 16 GB) saves resizing it under load
+            long heap = clamp(memory / 2, GB, 16 * GB);
+            options.add("-Xms" + heap / MB + "m");
+            options.add("-Xmx" + heap / MB + "m");
+            options.add(cores > 1 ? "-XX:+UseParallelGC" : "-XX:+UseSerialGC");
+        } else {
+            long heap = clamp(memory / 4, 512 * MB, 2 * GB);
+            options.add("-Xms" + Math.min(256 * MB, heap) / MB + "m");
+            options.add("-Xmx" + heap / MB + "m");
+            if (cores > 1) {
+                options.add("-XX:+UseG1GC");
+                options.add("-XX:MaxGCPauseMillis=50");
+            } else {
+                options.add("-XX:+UseSerialGC");
+            }
+        }
+        // XMage loads classes for thousands of cards; starting with room for them avoids full collections at startup
+        if (javaMajor != 0 && javaMajor < 8) {
+            options.add("-XX:MaxPermSize=384m");
+        } else {
+            options.add("-XX:MetaspaceSize=128m");
+        }
+        if (cores > 1 && cores < Runtime.getRuntime().availableProcessors()) {
+            // limited by a container that an older JVM wouldn't notice
+            options.add("-XX:ParallelGCThreads=" + cores);
+        }
+        return options;
+    }
+
+    /**
+     * @return options without those javaMajor doesn't accept; all of them if the version is unknown (0)
+     */
+    public static List<String> filter(List<String> options, int javaMajor) {
+        List<String> accepted = new ArrayList<String>();
+        for (String option : options) {
+            if (javaMajor == 0 || isAccepted(option, javaMajor)) {
+                accepted.add(option);
+            } else {
+                logger.info("Dropping " + option + ", Java " + javaMajor + " doesn't accept it");
+            }
+        }
+        return accepted;
+    }
+
+    private static boolean isAccepted(String option, int javaMajor) {
+        Matcher matcher = XX.matcher(option);
+        if (!matcher.matches()) {
+            return true;
+        }
+        for (Object[] versioned : VERSIONED) {
+            if (versioned[0].equals(matcher.group(1))) {
+                return javaMajor >= (Integer) versioned[1] && javaMajor <= (Integer) versioned[2];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return what option sets, so that a user option can replace the picked one: the heap and stack sizes, the
+     * garbage collector, or the name of an -XX option
+     */
+    private static String kind(String option) {
+        if (GC.matcher(option).matches()) {
+            return "GC";
+        }
+        Matcher matcher = SIZE.matcher(option);
+        if (matcher.matches()) {
+            return "-X" + matcher.group(1);
+        }
+        matcher = XX.matcher(option);
+        if (matcher.matches()) {
+            return matcher.group(1);
+        }
+        return option;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long getPhysicalMemory() {
+        try {
+            Class<?> bean = Class.forName("com.sun.management.OperatingSystemMXBean");
+            Object os = ManagementFactory.getOperatingSystemMXBean();
+            if (bean.isInstance(os)) {
+                return (Long) bean.getMethod("getTotalPhysicalMemorySize").invoke(os);
+            }
+        } catch (Exception ex) {
+            logger.warn("Can't determine the physical memory", ex);
+        }
+        return 0;
+    }
+
+    private static long readCgroupMemoryLimit() {
+        String limit = readFirstLine("/sys/fs/cgroup/memory.max"); // cgroup v2
+        if (limit == null) {
+            limit = readFirstLine("/sys/fs/cgroup/memory/memory.limit_in_bytes"); // cgroup v1
+        }
+        try {
+            return limit == null || limit.equals("max") ? 0 : Long.parseLong(limit);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static int readCgroupCpuLimit() {
+        long quota;
+        long period;
+        try {
+            String max = readFirstLine("/sys/fs/cgroup/cpu.max"); // cgroup v2: "<quota> <period>" or "max <period>"
+            if (max != null) {
+                String[] fields = max.split(" ");
+                if (fields.length < 2 || fields[0].equals("max")) {
+                    return 0;
+                }
+                quota = Long.parseLong(fields[0]);
+                period = Long.parseLong(fields[1]);
+            } else {
+                String v1Quota = readFirstLine("/sys/fs/cgroup/cpu/cpu.cfs_quota_us");
+                String v1Period = readFirstLine("/sys/fs/cgroup/cpu/cpu.cfs_period_us");
+                if (v1Quota == null || v1Period == null) {
+                    return 0;
+                }
+                quota = Long.parseLong(v1Quota);
+                period = Long.parseLong(v1Period);
+            }
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+        return quota <= 0 || period <= 0 ? 0 : (int) Math.max(1, (quota + period - 1) / period);
+    }
+
+    private static String readFirstLine(String path) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+}
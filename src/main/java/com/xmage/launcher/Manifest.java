@@ -0,0 +1,216 @@
+package com.xmage.launcher;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * The contents of config.json as published by an XMage home server.  It is parsed once, after that all tasks share
+ * the same immutable instance.
+ */
+public final class Manifest {
+
+    /**
+     * A binary patch turning the file with hash from into the file with hash to, see {@link Patcher}.
+     */
+    public static final class Patch {
+        private final String from;
+        private final String to;
+        private final String location;
+
+        private Patch(JSONObject json) throws JSONException {
+            this.from = json.getString("from").toLowerCase();
+            this.to = json.getString("to").toLowerCase();
+            this.location = json.getString("location");
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getTo() {
+            return to;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    /**
+     * A downloadable part of the installation: Java, XMage or the launcher itself.
+     */
+    public static final class Component {
+        private final String version;
+        private final String location;
+        private final Map<String, String> hashes = new HashMap<String, String>();
+        private final List<Patch> patches = new ArrayList<Patch>();
+
+        private Component(JSONObject json) throws JSONException {
+            this(json, null);
+        }
+
+        /**
+         * @param version the version if json doesn't name one, null if it must
+         */
+        private Component(JSONObject json, String version) throws JSONException {
+            this.version = version == null ? json.getString("version") : json.optString("version", version);
+            this.location = json.getString("location");
+            // either one hash, or one per platform for downloads that differ by OS and arch
+            Object sha256 = json.opt("sha256");
+            if (sha256 instanceof JSONObject) {
+                JSONObject platforms = (JSONObject) sha256;
+                for (String platform : platforms.keySet()) {
+                    hashes.put(platform, platforms.getString(platform));
+                }
+            } else if (sha256 != null) {
+                hashes.put("", sha256.toString());
+            }
+            JSONArray patchesJson = json.optJSONArray("patches");
+            if (patchesJson != null) {
+                for (int i = 0; i < patchesJson.length(); i++) {
+                    patches.add(new Patch(patchesJson.getJSONObject(i)));
+                }
+            }
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the download URL, for Java only its prefix that still needs the OS, arch and extension
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * @return the expected SHA-256 of the download as hex, or an empty string if the config has none
+         */
+        public String getSha256() {
+            return getSha256("");
+        }
+
+        /**
+         * @return the expected SHA-256 of the download for platform (as in {@link Utilities#getOSandArch()}), or an
+         * empty string if the config has none
+         */
+        public String getSha256(String platform) {
+            String hash = hashes.get(platform);
+            return hash == null ? "" : hash;
+        }
+
+        /**
+         * @return the patches published for this component, for XMage those of the single files in the release
+         */
+        public List<Patch> getPatches() {
+            return Collections.unmodifiableList(patches);
+        }
+    }
+
+    private final Component java;
+    private final Component xmage;
+    private final Component launcher;
+    private final List<String> mirrors;
+    private final String torrent;
+    private final String images;
+    private final String files;
+    private final Map<String, Component> xmageComponents = new HashMap<String, Component>();
+
+    private Manifest(JSONObject json) throws JSONException {
+        JSONObject xmageJson = json.getJSONObject("XMage");
+        this.java = new Component(json.getJSONObject("java"));
+        this.xmage = new Component(xmageJson);
+        this.launcher = new Component(xmageJson.getJSONObject("Launcher"));
+        List<String> locations = new ArrayList<String>();
+        locations.add(xmage.getLocation());
+        JSONArray alternatives = xmageJson.optJSONArray("locations");
+        if (alternatives != null) {
+            for (int i = 0; i < alternatives.length(); i++) {
+                locations.add(alternatives.getString(i));
+            }
+        }
+        this.mirrors = Collections.unmodifiableList(locations);
+        this.torrent = xmageJson.optString("torrent", "");
+        this.images = xmageJson.optString("images", "");
+        this.files = xmageJson.optString("files", "");
+        JSONObject components = xmageJson.optJSONObject("components");
+        if (components != null) {
+            for (String name : components.keySet()) {
+                xmageComponents.put(name, new Component(components.getJSONObject(name), xmage.getVersion()));
+            }
+        }
+    }
+
+    /**
+     * Parses a manifest straight from reader, which is read in blocks rather than one char at a time.
+     *
+     * @throws JSONException if the text is not valid JSON or a required entry is missing
+     */
+    public static Manifest parse(Reader reader) throws JSONException {
+        return new Manifest(new JSONObject(new JSONTokener(reader)));
+    }
+
+    public static Manifest parse(String text) throws JSONException {
+        return parse(new StringReader(text));
+    }
+
+    public Component getJava() {
+        return java;
+    }
+
+    public Component getXMage() {
+        return xmage;
+    }
+
+    public Component getLauncher() {
+        return launcher;
+    }
+
+    /**
+     * @return the download URLs of the XMage bundle, the main location first
+     */
+    public List<String> getXMageMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * @return the archive holding just one part of the XMage bundle, e.g. "server" (see
+     * {@link InstallProfile#getComponent()}), or null if config.json doesn't offer it separately
+     */
+    public Component getXMageComponent(String name) {
+        return xmageComponents.get(name);
+    }
+
+    /**
+     * @return the URL of the torrent for the XMage bundle, or an empty string if there is none
+     */
+    public String getTorrent() {
+        return torrent;
+    }
+
+    /**
+     * @return the URL of the card images, or an empty string if there are none
+     */
+    public String getImages() {
+        return images;
+    }
+
+    /**
+     * @return the URL of the {@link FileManifest} of the XMage release, or an empty string if there is none.  The
+     * paths in it are relative to this URL.
+     */
+    public String getXMageFiles() {
+        return files;
+    }
+
+}
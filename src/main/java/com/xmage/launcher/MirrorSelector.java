@@ -0,0 +1,127 @@
+package com.xmage.launcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Orders download mirrors by their expected throughput.  Every mirror is probed concurrently for latency and a short
+ * throughput sample, which is blended with the score it earned in earlier downloads (kept in installed.properties).
+ */
+public class MirrorSelector {
+
+    private static final Logger logger = LoggerFactory.getLogger(MirrorSelector.class);
+    private static final int PROBE_SIZE = 256 * 1024;
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final double WEIGHT = 0.5; // weight of a new measurement against the stored score
+
+    private MirrorSelector() {
+    }
+
+    /**
+     * Probes all mirrors at the same time and returns them best first.  Mirrors that did not answer keep their
+     * stored score, lowered as for a failed download.
+     */
+    public static List<URL> rank(List<URL> mirrors, final String cookies) {
+        if (mirrors.size() <= 1) {
+            return new ArrayList<URL>(mirrors); // nothing to choose from
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(mirrors.size());
+        Map<URL, Future<Double>> probes = new HashMap<URL, Future<Double>>();
+        for (final URL mirror : mirrors) {
+            probes.put(mirror, executor.submit(new Callable<Double>() {
+                @Override
+                public Double call() throws IOException {
+                    return probe(mirror, cookies);
+                }
+            }));
+        }
+        executor.shutdown();
+        long deadline = System.currentTimeMillis() + 2 * PROBE_TIMEOUT;
+        for (URL mirror : mirrors) {
+            try {
+                double rate = probes.get(mirror).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                logger.info("Mirror " + mirror + ": " + Math.round(rate / 1024) + " KB/s");
+                recordThroughput(mirror, rate);
+            } catch (ExecutionException ex) {
+                logger.warn("Mirror " + mirror + " failed probe: " + ex.getCause().getMessage());
+                recordFailure(mirror);
+            } catch (TimeoutException ex) {
+                logger.warn("Mirror " + mirror + " timed out");
+                recordFailure(mirror);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        executor.shutdownNow();
+        Config.saveProperties();
+
+        List<URL> ranked = new ArrayList<URL>(mirrors);
+        Collections.sort(ranked, new Comparator<URL>() {
+            @Override
+            public int compare(URL url1, URL url2) {
+                return Double.compare(Config.getMirrorScore(url2.toString()), Config.getMirrorScore(url1.toString()));
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Fetches the first bytes of mirror.
+     *
+     * @return the throughput in bytes/s including the time to the first byte
+     */
+    private static double probe(URL mirror, String cookies) throws IOException {
+        long start = System.nanoTime();
+        Downloader dl = new Downloader();
+        dl.setTimeout(PROBE_TIMEOUT);
+        dl.connect(mirror, cookies, 0, PROBE_SIZE - 1);
+        try {
+            InputStream in = dl.getInputStream();
+            byte[] data = new byte[8192];
+            int total = 0;
+            int count;
+            while (total < PROBE_SIZE && (count = in.read(data, 0, Math.min(data.length, PROBE_SIZE - total))) != -1) {
+                total += count;
+            }
+            double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+            return total / seconds;
+        } finally {
+            dl.abort();
+        }
+    }
+
+    /**
+     * Blends a measured throughput (bytes/s) into the stored score of mirror.
+     */
+    public static synchronized void recordThroughput(URL mirror, double rate) {
+        String key = mirror.toString();
+        double score = Config.getMirrorScore(key);
+        Config.setMirrorScore(key, score > 0 ? score * (1 - WEIGHT) + rate * WEIGHT : rate);
+    }
+
+    /**
+     * Lowers the stored score of mirror after a failed probe or download.
+     */
+    public static synchronized void recordFailure(URL mirror) {
+        String key = mirror.toString();
+        Config.setMirrorScore(key, Config.getMirrorScore(key) * (1 - WEIGHT));
+    }
+
+}
@@ -0,0 +1,316 @@
+package com.xmage.launcher;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Applies binary patches between two versions of a file.  A patch is a gzip compressed stream of
+ * <pre>
+ * "XMPATCH1"
+ * COPY (1): long offset, int length   copy length bytes of the old file starting at offset
+ * ADD  (2): int length, bytes         insert length new bytes
+ * END  (0)
+ * </pre>
+ * The new file is written front to back, so a patch is applied in one pass over the patch with random reads of the
+ * old file, without holding either in memory.
+ * <p>
+ * Patches are made when publishing a release, with the two versions of a file:
+ * <pre>
+ * java -cp XMageLauncher.jar com.xmage.launcher.Patcher &lt;old file&gt; &lt;new file&gt; &lt;patch&gt;
+ * </pre>
+ * which writes the patch and prints its entry for the patches of the component in config.json, to be completed
+ * with the URL the patch is uploaded to.
+ */
+public final class Patcher {
+
+    private static final byte[] MAGIC = {'X', 'M', 'P', 'A', 'T', 'C', 'H', '1'};
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int ADD = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // the shortest run of old bytes worth a COPY, and the size of the blocks of the old file looked up
+    private static final int BLOCK_SIZE = 32;
+    private static final int HASH_BASE = 31;
+
+    private Patcher() {
+    }
+
+    /**
+     * Writes the result of applying patch to old into out.
+     *
+     * @return the SHA-256 of out
+     * @throws IOException if the patch is malformed or doesn't fit old
+     */
+    public static byte[] apply(File old, InputStream patch, File out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(patch, BUFFER_SIZE), BUFFER_SIZE));
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a patch");
+            }
+        }
+        MessageDigest digest = Hashing.newSha256();
+        RandomAccessFile raf = new RandomAccessFile(old, "r");
+        OutputStream output = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(out), BUFFER_SIZE), digest);
+        try {
+            FileChannel source = raf.getChannel();
+            long oldSize = source.size();
+            byte[] data = new byte[BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (true) {
+                int op = in.read();
+                if (op == END) {
+                    break;
+                } else if (op == COPY) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > oldSize) {
+                        throw new IOException("Patch copies outside of " + old.getName());
+                    }
+                    while (length > 0) {
+                        buffer.clear();
+                        buffer.limit(Math.min(length, data.length));
+                        int count = source.read(buffer, offset);
+                        if (count <= 0) {
+                            throw new EOFException("Unexpected end of " + old.getName());
+                        }
+                        output.write(data, 0, count);
+                        offset += count;
+                        length -= count;
+                    }
+                } else if (op == ADD) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        throw new IOException("Invalid patch");
+                    }
+                    while (length > 0) {
+                        int count = Math.min(length, data.length);
+                        in.readFully(data, 0, count);
+                        output.write(data, 0, count);
+                        length -= count;
+                    }
+                } else {
+                    throw new IOException(op == -1 ? "Truncated patch" : "Invalid patch operation " + op);
+                }
+            }
+        } finally {
+            output.close();
+            raf.close();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Writes a patch turning old into target to out, which is closed.  The blocks of old are indexed by a rolling hash
+     * and target is scanned for them, so data that moved is copied too.  Matches are extended byte by byte in both
+     * directions, so unchanged entries of a jar are copied whole.
+     */
+    public static void diff(File old, File target, OutputStream out) throws IOException {
+        byte[] source = Files.readAllBytes(old.toPath());
+        byte[] data = Files.readAllBytes(target.toPath());
+        Map<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int offset = 0; offset + BLOCK_SIZE <= source.length; offset += BLOCK_SIZE) {
+            Integer hash = hash(source, offset);
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, offset);
+            }
+        }
+        int power = 1; // HASH_BASE to the power of BLOCK_SIZE - 1, to take the oldest byte out of the rolling hash
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            power *= HASH_BASE;
+        }
+        DataOutputStream patch = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out, BUFFER_SIZE), BUFFER_SIZE));
+        try {
+            patch.write(MAGIC);
+            int added = 0; // the start of the bytes of target no COPY covers yet
+            int position = 0;
+            int hash = position + BLOCK_SIZE <= data.length ? hash(data, position) : 0;
+            while (position + BLOCK_SIZE <= data.length) {
+                Integer offset = blocks.get(hash);
+                if (offset != null && equal(source, offset, data, position, BLOCK_SIZE)) {
+                    int start = offset;
+                    int from = position;
+                    while (start > 0 && from > added && source[start - 1] == data[from - 1]) {
+                        start--;
+                        from--;
+                    }
+                    int end = offset + BLOCK_SIZE;
+                    int to = position + BLOCK_SIZE;
+                    while (end < source.length && to < data.length && source[end] == data[to]) {
+                        end++;
+                        to++;
+                    }
+                    writeAdd(patch, data, added, from);
+                    patch.write(COPY);
+                    patch.writeLong(start);
+                    patch.writeInt(end - start);
+                    added = to;
+                    position = to;
+                    if (position + BLOCK_SIZE <= data.length) {
+                        hash = hash(data, position);
+                    }
+                } else {
+                    if (position + BLOCK_SIZE < data.length) {
+                        hash = (hash - data[position] * power) * HASH_BASE + data[position + BLOCK_SIZE];
+                    }
+                    position++;
+                }
+            }
+            writeAdd(patch, data, added, data.length);
+            patch.write(END);
+        } finally {
+            patch.close();
+        }
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * HASH_BASE + data[i];
+        }
+        return hash;
+    }
+
+    private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeAdd(DataOutputStream patch, byte[] data, int from, int to) throws IOException {
+        if (from < to) {
+            patch.write(ADD);
+            patch.writeInt(to - from);
+            patch.write(data, from, to - from);
+        }
+    }
+
+    /**
+     * Makes the patch between two versions of a file for publishing, see the class comment.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: java -cp XMageLauncher.jar " + Patcher.class.getName() + " <old file> <new file> <patch>");
+            System.exit(1);
+        }
+        File old = new File(args[0]);
+        File target = new File(args[1]);
+        File patch = new File(args[2]);
+        diff(old, target, new FileOutputStream(patch));
+        File check = File.createTempFile("patched", null);
+        InputStream in = new FileInputStream(patch);
+        try {
+            if (!Hashing.toHex(apply(old, in, check)).equals(Hashing.sha256(target))) {
+                throw new IOException("Applying " + patch + " to " + old + " doesn't give " + target);
+            }
+        } finally {
+            in.close();
+            check.delete();
+        }
+        System.out.println(patch.getName() + ": " + patch.length() + " bytes for " + target.length() + " bytes of " + target.getName());
+        System.out.println("{\"from\": \"" + Hashing.sha256(old) + "\", \"to\": \"" + Hashing.sha256(target)
+                + "\", \"location\": \"" + patch.getName() + "\"}");
+    }
+
+    /**
+     * Downloads and applies the patches of chain in turn, starting from old, checking every result against the hash
+     * the patch should produce.
+     *
+     * @param out receives the final file, and serves as temp file for the intermediate ones
+     * @throws IOException if a download fails or a result doesn't match its hash
+     */
+    public static void patch(File old, List<Manifest.Patch> chain, File out, String cookies) throws IOException {
+        File current = old;
+        for (int i = 0; i < chain.size(); i++) {
+            Manifest.Patch patch = chain.get(i);
+            File next = i == chain.size() - 1 ? out : new File(out.getParentFile(), out.getName() + ".patch" + i);
+            Downloader dl = new Downloader();
+            dl.connect(new URL(patch.getLocation()), cookies);
+            byte[] hash;
+            try {
+                hash = apply(current, dl.getInputStream(), next);
+            } catch (IOException ex) {
+                next.delete();
+                if (current != old) {
+                    current.delete();
+                }
+                throw ex;
+            } finally {
+                dl.disconnect();
+            }
+            if (current != old && !current.delete()) {
+                throw new IOException("Can't remove " + current.getAbsolutePath());
+            }
+            current = next;
+            if (!Hashing.matches(patch.getTo(), hash)) {
+                current.delete();
+                throw new IOException("Patch " + patch.getLocation() + " produced a file with the wrong hash");
+            }
+        }
+    }
+
+    /**
+     * Finds the shortest sequence of patches leading from the file with hash from to the one with hash to.
+     *
+     * @return the patches to apply in order, an empty list if from is to, or null if there is no such sequence
+     */
+    public static List<Manifest.Patch> findChain(List<Manifest.Patch> patches, String from, String to) {
+        from = from.toLowerCase();
+        to = to.toLowerCase();
+        if (from.equals(to)) {
+            return Collections.emptyList();
+        }
+        // breadth first over the hashes, remembering the patch that first reached each one
+        Map<String, Manifest.Patch> reachedBy = new HashMap<String, Manifest.Patch>();
+        Deque<String> queue = new ArrayDeque<String>();
+        queue.add(from);
+        reachedBy.put(from, null);
+        while (!queue.isEmpty()) {
+            String hash = queue.poll();
+            for (Manifest.Patch patch : patches) {
+                if (patch.getFrom().equals(hash) && !reachedBy.containsKey(patch.getTo())) {
+                    reachedBy.put(patch.getTo(), patch);
+                    if (patch.getTo().equals(to)) {
+                        List<Manifest.Patch> chain = new ArrayList<Manifest.Patch>();
+                        for (Manifest.Patch step = patch; step != null; step = reachedBy.get(step.getFrom())) {
+                            chain.add(0, step);
+                        }
+                        return chain;
+                    }
+                    queue.add(patch.getTo());
+                }
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.xmage.launcher;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+
+/**
+ * Drives a progress bar at a fixed frame rate from counters that worker threads update without allocating or
+ * touching the EDT.  While bytes are counted the bar also shows the smoothed throughput and the time left.
+ */
+public class ProgressMeter implements ActionListener {
+
+    private static final int FRAME_INTERVAL = 100; // 10 frames per second
+    private static final double RATE_TIME_CONSTANT = 3000; // ms, how quickly the shown throughput follows changes
+    private static final double MB = 1024 * 1024;
+    private static final ResourceBundle MESSAGES = ResourceBundle.getBundle("MessagesBundle");
+
+    private final JProgressBar progressBar;
+    private final Timer timer;
+
+    // written by the workers
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicInteger generation = new AtomicInteger();
+    private volatile long total;
+    private volatile boolean counting;
+    private volatile boolean finished = true;
+
+    // only used on the EDT
+    private int shownGeneration = -1;
+    private long lastTime;
+    private long lastDone;
+    private double rate;
+
+    public ProgressMeter(JProgressBar progressBar) {
+        this.progressBar = progressBar;
+        this.timer = new Timer(FRAME_INTERVAL, this);
+        this.timer.setCoalesce(true);
+    }
+
+    /**
+     * Starts measuring a new transfer of total bytes, or of unknown size if total is not positive, of which done
+     * bytes are already there (when resuming).
+     */
+    public void begin(long total, long done) {
+        start(total, done, true, false);
+    }
+
+    /**
+     * Adds bytes to the current transfer, can be called from any thread for every chunk.
+     */
+    public void add(long bytes) {
+        done.addAndGet(bytes);
+    }
+
+    /**
+     * Sets the number of bytes of the current transfer done so far.
+     */
+    public void set(long bytes) {
+        done.set(bytes);
+    }
+
+    /**
+     * Shows the final state of the current transfer and stops updating the bar.
+     */
+    public void end() {
+        if (total > 0) {
+            done.set(total);
+        }
+        finished = true;
+    }
+
+    /**
+     * Shows a plain percentage, without throughput.
+     */
+    public void setPercentage(int perc) {
+        start(100, perc, false, true);
+    }
+
+    private synchronized void start(long total, long done, boolean counting, boolean finished) {
+        this.finished = finished;
+        this.total = total;
+        this.counting = counting;
+        this.done.set(done);
+        generation.incrementAndGet();
+        timer.start();
+    }
+
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        // read in the reverse order the workers write, so the last frame always shows the final counts
+        int gen = generation.get();
+        boolean last = finished;
+        long now = System.currentTimeMillis();
+        long current = done.get();
+        long size = total;
+        if (gen != shownGeneration) {
+            shownGeneration = gen;
+            lastTime = now;
+            lastDone = current;
+            rate = 0;
+        } else if (now > lastTime) {
+            double sample = (current - lastDone) * 1000.0 / (now - lastTime);
+            double alpha = rate == 0 ? 1 : 1 - Math.exp(-(now - lastTime) / RATE_TIME_CONSTANT);
+            rate += alpha * (sample - rate);
+            lastTime = now;
+            lastDone = current;
+        }
+
+        int perc = size > 0 ? (int) Math.min(100, current * 100 / size) : 0;
+        progressBar.setValue(perc);
+        if (counting && !last && rate > 0) {
+            String speed = String.format("%.1f", rate / MB);
+            if (size > 0) {
+                progressBar.setString(MessageFormat.format(MESSAGES.getString("progress.rate"), perc, speed, formatTime((size - current) / rate)));
+            } else {
+                progressBar.setString(MessageFormat.format(MESSAGES.getString("progress.rate.unknown"), speed));
+            }
+            progressBar.setStringPainted(true);
+        } else {
+            progressBar.setStringPainted(false);
+        }
+        synchronized (this) {
+            if (last && gen == generation.get()) {
+                timer.stop();
+            }
+        }
+    }
+
+    private static String formatTime(double seconds) {
+        long s = Math.round(seconds);
+        if (s >= 3600) {
+            return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+        }
+        return String.format("%d:%02d", s / 60, s % 60);
+    }
+
+}
@@ -10,6 +10,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -25,6 +27,7 @@ import javax.swing.JTabbedPane;
 import javax.swing.JTextField;
 import javax.swing.SpinnerModel;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingWorker;
 
 /**
  *
@@ -32,6 +35,7 @@ import javax.swing.SpinnerNumberModel;
  */
 public class SettingsDialog extends JDialog {
 
+    private static final String DEFAULT_JAVA = "Last installed";
     private final JTabbedPane tabbedPane;
     private final JPanel buttonPanel;
     private final JPanel panel1;
@@ -44,6 +48,17 @@ public class SettingsDialog extends JDialog {
     private final JCheckBox chkShowClientConsole;
     private final JCheckBox chkShowServerConsole;
     private final JSpinner spnGuiSize;
+    private final JSpinner spnConnections;
+    private final JCheckBox chkExtractWhileDownloading;
+    private final JSpinner spnVersionsKept;
+    private final JSpinner spnStoreLimit;
+    private final JComboBox<InstallProfile> cmbInstallProfile;
+    private final JComboBox<String> cmbClientJava;
+    private final JComboBox<String> cmbServerJava;
+    private final JCheckBox chkClassDataSharing;
+    private final JCheckBox chkBuildJavaRuntime;
+    private final JComboBox<JvmOptions.Preset> cmbClientPreset;
+    private final JComboBox<JvmOptions.Preset> cmbServerPreset;
 
     private final JSpinner spnUpRate;
     private final JSpinner spnDownRate;
@@ -58,7 +73,7 @@ public class SettingsDialog extends JDialog {
         setTitle("XMage Launcher Settings");
         setModalityType(ModalityType.APPLICATION_MODAL);
         pack();
-        setSize(400 + Config.getGuiSize() * 20, 230 + Config.getGuiSize() * 12);
+        setSize(400 + Config.getGuiSize() * 20, 280 + Config.getGuiSize() * 16);
         setBackground(Color.gray);
         setLocationRelativeTo(null);
         this.addWindowListener(new WindowAdapter() {
@@ -165,6 +180,83 @@ public class SettingsDialog extends JDialog {
         constraints.gridwidth = GridBagConstraints.REMAINDER;
         panel1.add(Box.createHorizontalBox(), constraints);
 
+        label = new JLabel("Download Connections:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel1.add(label, constraints);
+
+        SpinnerModel connectionsModel = new SpinnerNumberModel(Config.getDownloadConnections(), Config.MIN_DOWNLOAD_CONNECTIONS,
+                Config.MAX_DOWNLOAD_CONNECTIONS, 1);
+        spnConnections = new JSpinner(connectionsModel);
+        spnConnections.setFont(defaultFont);
+        constraints.gridwidth = 1;
+        constraints.anchor = GridBagConstraints.WEST;
+        panel1.add(spnConnections, constraints);
+
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        panel1.add(Box.createHorizontalBox(), constraints);
+
+        label = new JLabel("Extract While Downloading:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel1.add(label, constraints);
+
+        chkExtractWhileDownloading = new JCheckBox();
+        chkExtractWhileDownloading.setSelected(Config.isExtractWhileDownloading());
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel1.add(chkExtractWhileDownloading, constraints);
+
+        label = new JLabel("XMage Versions Kept:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel1.add(label, constraints);
+
+        SpinnerModel versionsModel = new SpinnerNumberModel(Config.getXMageVersionsKept(), Config.MIN_XMAGE_VERSIONS_KEPT,
+                Config.MAX_XMAGE_VERSIONS_KEPT, 1);
+        spnVersionsKept = new JSpinner(versionsModel);
+        spnVersionsKept.setFont(defaultFont);
+        constraints.gridwidth = 1;
+        constraints.anchor = GridBagConstraints.WEST;
+        panel1.add(spnVersionsKept, constraints);
+
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        panel1.add(Box.createHorizontalBox(), constraints);
+
+        label = new JLabel("Kept Versions Limit (MB):");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel1.add(label, constraints);
+
+        SpinnerModel limitModel = new SpinnerNumberModel(Config.getStoreLimit(), Config.MIN_STORE_LIMIT, Config.MAX_STORE_LIMIT, 100);
+        spnStoreLimit = new JSpinner(limitModel);
+        spnStoreLimit.setFont(defaultFont);
+        constraints.gridwidth = 1;
+        constraints.anchor = GridBagConstraints.WEST;
+        panel1.add(spnStoreLimit, constraints);
+
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        panel1.add(Box.createHorizontalBox(), constraints);
+
+        label = new JLabel("Install:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel1.add(label, constraints);
+
+        cmbInstallProfile = new JComboBox<InstallProfile>(InstallProfile.values());
+        cmbInstallProfile.setSelectedItem(Config.getInstallProfile());
+        constraints.gridwidth = 1;
+        constraints.anchor = GridBagConstraints.WEST;
+        panel1.add(cmbInstallProfile, constraints);
+
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        panel1.add(Box.createHorizontalBox(), constraints);
+
         // Java settings panel
         panel2 = new JPanel();
         layout = new GridBagLayout();
@@ -174,16 +266,43 @@ public class SettingsDialog extends JDialog {
         constraints = new GridBagConstraints();
         constraints.insets = new Insets(10, 10, 10, 10);
 
+        JvmOptions.Hardware hardware = JvmOptions.Hardware.detect();
+
+        label = new JLabel("Client preset:");
+        constraints.anchor = GridBagConstraints.EAST;
+        panel2.add(label, constraints);
+
+        cmbClientPreset = new JComboBox<JvmOptions.Preset>(JvmOptions.Preset.values());
+        cmbClientPreset.setSelectedItem(Config.getClientPreset());
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(cmbClientPreset, constraints);
+
         label = new JLabel("Client java options:");
         constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
         panel2.add(label, constraints);
 
         txtClientJavaOpt = new JTextField();
         txtClientJavaOpt.setText(Config.getClientJavaOpts());
+        txtClientJavaOpt.setToolTipText(getPresetTip(Config.getClientPreset(), hardware));
         constraints.gridwidth = GridBagConstraints.REMAINDER;
         constraints.fill = GridBagConstraints.BOTH;
         panel2.add(txtClientJavaOpt, constraints);
 
+        label = new JLabel("Server preset:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel2.add(label, constraints);
+
+        cmbServerPreset = new JComboBox<JvmOptions.Preset>(JvmOptions.Preset.values());
+        cmbServerPreset.setSelectedItem(Config.getServerPreset());
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(cmbServerPreset, constraints);
+
         label = new JLabel("Server java options:");
         constraints.anchor = GridBagConstraints.EAST;
         constraints.gridwidth = 1;
@@ -192,10 +311,63 @@ public class SettingsDialog extends JDialog {
 
         txtServerJavaOpt = new JTextField();
         txtServerJavaOpt.setText(Config.getServerJavaOpts());
+        txtServerJavaOpt.setToolTipText(getPresetTip(Config.getServerPreset(), hardware));
         constraints.gridwidth = GridBagConstraints.REMAINDER;
         constraints.fill = GridBagConstraints.BOTH;
         panel2.add(txtServerJavaOpt, constraints);
 
+        List<String> runtimes = new ArrayList<String>();
+        runtimes.add(DEFAULT_JAVA);
+        runtimes.addAll(Utilities.getJavaStore().getKeys());
+
+        label = new JLabel("Client Java:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel2.add(label, constraints);
+
+        cmbClientJava = newJavaCombo(runtimes, Config.getClientJavaRuntime());
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(cmbClientJava, constraints);
+
+        label = new JLabel("Server Java:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel2.add(label, constraints);
+
+        cmbServerJava = newJavaCombo(runtimes, Config.getServerJavaRuntime());
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(cmbServerJava, constraints);
+
+        label = new JLabel("Class Data Sharing:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel2.add(label, constraints);
+
+        chkClassDataSharing = new JCheckBox();
+        chkClassDataSharing.setSelected(Config.isUseClassDataSharing());
+        chkClassDataSharing.setToolTipText("Start faster from an archive of the classes used, needs Java 10 or later");
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(chkClassDataSharing, constraints);
+
+        label = new JLabel("Build Java with jlink:");
+        constraints.anchor = GridBagConstraints.EAST;
+        constraints.gridwidth = 1;
+        constraints.fill = GridBagConstraints.NONE;
+        panel2.add(label, constraints);
+
+        chkBuildJavaRuntime = new JCheckBox();
+        chkBuildJavaRuntime.setSelected(Config.isBuildJavaRuntime());
+        chkBuildJavaRuntime.setToolTipText("Build a smaller Java with just the modules XMage uses from a JDK 11 or later on this computer, instead of downloading one");
+        constraints.gridwidth = GridBagConstraints.REMAINDER;
+        constraints.fill = GridBagConstraints.BOTH;
+        panel2.add(chkBuildJavaRuntime, constraints);
+
         // Torrent settings panel
         panel3 = new JPanel();
         layout = new GridBagLayout();
@@ -277,17 +449,58 @@ public class SettingsDialog extends JDialog {
 
     }
 
+    /**
+     * @return a tooltip for the options field, showing what the options given there are added to
+     */
+    private static String getPresetTip(JvmOptions.Preset preset, JvmOptions.Hardware hardware) {
+        StringBuilder tip = new StringBuilder("<html>Added to the options picked for " + hardware + ":<br>");
+        for (String option : JvmOptions.pick(preset, hardware, 0)) {
+            tip.append(option).append(' ');
+        }
+        return tip.append("<br>An option given here replaces the picked option of the same kind.</html>").toString();
+    }
+
+    private static JComboBox<String> newJavaCombo(List<String> runtimes, String selected) {
+        JComboBox<String> combo = new JComboBox<String>(runtimes.toArray(new String[runtimes.size()]));
+        combo.setSelectedItem(runtimes.contains(selected) ? selected : DEFAULT_JAVA);
+        combo.setToolTipText("The Java installed by the launcher to start with, the last one installed by default");
+        return combo;
+    }
+
+    private static String getJavaRuntime(JComboBox<String> combo) {
+        return combo.getSelectedIndex() <= 0 ? "" : (String) combo.getSelectedItem();
+    }
+
     private void handleDone() {
         Config.setClientJavaOpts(this.txtClientJavaOpt.getText());
         Config.setServerJavaOpts(this.txtServerJavaOpt.getText());
+        Config.setClientPreset((JvmOptions.Preset) this.cmbClientPreset.getSelectedItem());
+        Config.setServerPreset((JvmOptions.Preset) this.cmbServerPreset.getSelectedItem());
+        Config.setClientJavaRuntime(getJavaRuntime(this.cmbClientJava));
+        Config.setServerJavaRuntime(getJavaRuntime(this.cmbServerJava));
         Config.setXMageHome(this.txtXMageHome.getText());
         Config.setShowClientConsole(this.chkShowClientConsole.isSelected());
         Config.setShowServerConsole(this.chkShowServerConsole.isSelected());
         Config.setGuiSize((Integer) this.spnGuiSize.getValue());
+        Config.setDownloadConnections((Integer) this.spnConnections.getValue());
+        Config.setExtractWhileDownloading(this.chkExtractWhileDownloading.isSelected());
+        Config.setXMageVersionsKept((Integer) this.spnVersionsKept.getValue());
+        Config.setStoreLimit((Integer) this.spnStoreLimit.getValue());
+        Config.setInstallProfile((InstallProfile) this.cmbInstallProfile.getSelectedItem());
+        Config.setUseClassDataSharing(this.chkClassDataSharing.isSelected());
+        Config.setBuildJavaRuntime(this.chkBuildJavaRuntime.isSelected());
         Config.setUseTorrent(this.chkUseTorrent.isSelected());
         Config.setTorrentUpRate((Integer) spnUpRate.getValue());
         Config.setTorrentDownRate((Integer) spnDownRate.getValue());
         Config.saveProperties();
+        // removing a runtime no longer chosen deletes a whole Java tree, so not on the EDT
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                Utilities.cleanJavaStore();
+                return null;
+            }
+        }.execute();
         dispose();
     }
 
@@ -0,0 +1,148 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs a new version next to the live one and then swaps the two folders, so the live install stays usable until
+ * the new one is complete and an aborted install leaves it untouched.  The replaced folder is kept, since a client or
+ * server started before the swap may still load classes from it, and deleted by {@link #recover(File)} on the next
+ * start.
+ */
+public final class StagedInstall {
+
+    private static final Logger logger = LoggerFactory.getLogger(StagedInstall.class);
+    private static final Pattern VERSION_CHARS = Pattern.compile("[^A-Za-z0-9._-]");
+    private static final String STAGED = ".new-";
+    private static final String OLD = ".old-";
+
+    private StagedInstall() {
+    }
+
+    /**
+     * @return the folder version is extracted into before it replaces live
+     */
+    public static File stagingFor(File live, String version) {
+        return new File(live.getParentFile(), live.getName() + STAGED + VERSION_CHARS.matcher(version).replaceAll("_"));
+    }
+
+    /**
+     * Moves the files and folders of live whose name matches keep into staged, where staged doesn't have them yet, and
+     * then replaces live by staged.  If live can't be moved (e.g. because a program still has files in it open on
+     * Windows) everything is put back as it was.  The replaced folder is left next to live until {@link #recover(File)}.
+     */
+    public static void swap(File staged, File live, Pattern keep) throws IOException {
+        if (!live.exists()) {
+            move(staged, live);
+            return;
+        }
+        List<File[]> moved = new ArrayList<File[]>();
+        try {
+            carryOver(live, staged, keep, moved);
+        } catch (IOException ex) {
+            restore(moved);
+            throw ex;
+        }
+        File old = new File(live.getParentFile(), live.getName() + OLD + System.currentTimeMillis());
+        try {
+            move(live, old);
+        } catch (IOException ex) {
+            restore(moved);
+            throw new IOException("Can't move " + live.getAbsolutePath() + " out of the way, is XMage still running?", ex);
+        }
+        try {
+            move(staged, live);
+        } catch (IOException ex) {
+            move(old, live);
+            restore(moved);
+            throw ex;
+        }
+        logger.info("Replaced " + live.getAbsolutePath() + ", the previous version is in " + old.getName() + " until the next start");
+    }
+
+    /**
+     * Finishes what an interrupted swap left behind: puts the previous folder back if live is missing, and deletes
+     * replaced and partly extracted folders in the background.  Must not run while an install is going on.
+     */
+    public static void recover(final File live) {
+        File[] leftovers = live.getParentFile().listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(live.getName() + OLD) || name.startsWith(live.getName() + STAGED);
+            }
+        });
+        if (leftovers == null) {
+            return;
+        }
+        Arrays.sort(leftovers); // the newest replaced folder comes last
+        for (int i = leftovers.length - 1; i >= 0; i--) {
+            if (!live.exists() && leftovers[i].getName().startsWith(live.getName() + OLD)) {
+                try {
+                    move(leftovers[i], live);
+                    logger.info("Restored " + live.getAbsolutePath() + " from " + leftovers[i].getName());
+                    continue;
+                } catch (IOException ex) {
+                    logger.error("Can't restore " + live.getAbsolutePath(), ex);
+                }
+            }
+            TreeRemover.deleteLater(leftovers[i]);
+        }
+    }
+
+    private static void carryOver(File from, File to, Pattern keep, List<File[]> moved) throws IOException {
+        File[] files = from.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            File dest = new File(to, file.getName());
+            if (keep.matcher(file.getName()).matches()) {
+                merge(file, dest, moved);
+            } else if (file.isDirectory()) {
+                carryOver(file, dest, keep, moved);
+            }
+        }
+    }
+
+    /**
+     * Moves from to dest, or the parts of it that dest doesn't have if both are folders.  Files of the new version win.
+     */
+    private static void merge(File from, File dest, List<File[]> moved) throws IOException {
+        if (!dest.exists()) {
+            dest.getParentFile().mkdirs();
+            move(from, dest);
+            moved.add(new File[] {from, dest});
+        } else if (from.isDirectory() && dest.isDirectory()) {
+            File[] files = from.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    merge(file, new File(dest, file.getName()), moved);
+                }
+            }
+        }
+    }
+
+    private static void restore(List<File[]> moved) {
+        for (int i = moved.size() - 1; i >= 0; i--) {
+            try {
+                move(moved.get(i)[1], moved.get(i)[0]);
+            } catch (IOException ex) {
+                logger.error("Can't move " + moved.get(i)[1].getAbsolutePath() + " back", ex);
+            }
+        }
+    }
+
+    private static void move(File from, File to) throws IOException {
+        Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -20,6 +20,7 @@ public class StreamGobbler extends Thread {
 
     private final InputStream is;
     private final JTextArea text;
+    private final long started = System.currentTimeMillis();
 
     public StreamGobbler(InputStream is, JTextArea text) {
         this.is = is;
@@ -31,9 +32,14 @@ public class StreamGobbler extends Thread {
         try {
             InputStreamReader isr = new InputStreamReader(is);
             BufferedReader br = new BufferedReader(isr);
-            String line;
-            while ((line = br.readLine()) != null) {
+            String line = br.readLine();
+            if (line != null) {
+                // the time to the first output shows the gain of class data sharing (see ClassDataSharing)
+                logger.info("First output after " + (System.currentTimeMillis() - started) + " ms");
+            }
+            while (line != null) {
                 appendLine(line);
+                line = br.readLine();
             }
         } catch (IOException ex) {
             appendLine(ex.toString()); // note below
@@ -0,0 +1,161 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Removes folder trees, deleting the sub folders in parallel, or moves them to a trash folder next to them that is
+ * emptied in the background.  Links are deleted, never followed.
+ */
+public final class TreeRemover {
+
+    private static final Logger logger = LoggerFactory.getLogger(TreeRemover.class);
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // for trees nobody waits for, with fewer threads that yield to the rest of the launcher and to XMage
+    private static final ForkJoinPool BACKGROUND = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    };
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            }, null, false);
+    private static final String TRASH = ".trash-";
+
+    private TreeRemover() {
+    }
+
+    /**
+     * Deletes file, and everything in it if it is a folder.
+     */
+    public static void delete(File file) {
+        POOL.invoke(new Remove(file.toPath(), null, true));
+    }
+
+    /**
+     * Deletes everything in folder except the files and folders whose name matches keep.  The folder itself and the
+     * folders holding something kept are left.
+     */
+    public static void delete(File folder, Pattern keep) {
+        POOL.invoke(new Remove(folder.toPath(), keep, false));
+    }
+
+    /**
+     * Renames folder out of the way and deletes it in the background.
+     *
+     * @return false if folder can't be renamed, it is left as it is in that case
+     */
+    public static boolean moveToTrash(File folder) {
+        File trash = new File(folder.getParentFile(), folder.getName() + TRASH + System.currentTimeMillis());
+        try {
+            Files.move(folder.toPath(), trash.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.warn("Can't move " + folder.getAbsolutePath() + " to the trash: " + ex.getMessage());
+            return false;
+        }
+        deleteLater(trash);
+        return true;
+    }
+
+    /**
+     * Deletes in the background what is left in the trash folders in dir, e.g. because the launcher exited before.
+     */
+    public static void emptyTrash(File dir) {
+        File[] trash = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.contains(TRASH);
+            }
+        });
+        if (trash != null) {
+            for (File folder : trash) {
+                deleteLater(folder);
+            }
+        }
+    }
+
+    /**
+     * Deletes file on low priority background threads.
+     */
+    public static void deleteLater(File file) {
+        BACKGROUND.execute(new Remove(file.toPath(), null, true));
+    }
+
+    private static class Remove extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path path;
+        private final Pattern keep;
+        private final boolean removeSelf;
+
+        Remove(Path path, Pattern keep, boolean removeSelf) {
+            this.path = path;
+            this.keep = keep;
+            this.removeSelf = removeSelf;
+        }
+
+        @Override
+        protected void compute() {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                List<Remove> folders = new ArrayList<Remove>();
+                try {
+                    DirectoryStream<Path> children = Files.newDirectoryStream(path);
+                    try {
+                        for (Path child : children) {
+                            if (keep != null && keep.matcher(child.getFileName().toString()).matches()) {
+                                continue;
+                            }
+                            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                                folders.add(new Remove(child, keep, true));
+                            } else {
+                                remove(child);
+                            }
+                        }
+                    } finally {
+                        children.close();
+                    }
+                } catch (IOException ex) {
+                    logger.error("Can't list " + path, ex);
+                }
+                invokeAll(folders);
+            }
+            if (removeSelf) {
+                remove(path);
+            }
+        }
+
+        private void remove(Path file) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (DirectoryNotEmptyException ex) {
+                if (keep == null) {
+                    logger.error("Can't remove " + file + ", it is not empty");
+                }
+            } catch (NoSuchFileException ex) {
+                // already gone
+            } catch (IOException ex) {
+                logger.error("Can't remove " + file, ex);
+            }
+        }
+    }
+
+}
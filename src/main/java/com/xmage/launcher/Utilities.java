@@ -1,18 +1,10 @@
 package com.xmage.launcher;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.LoggerFactory;
 
 /**
@@ -32,13 +24,21 @@ public class Utilities {
     }
 
     public static File getInstallPath() {
-        File path = null;
+        File jar = getLauncherJar();
+        return jar == null ? null : jar.getParentFile();
+    }
+
+    /**
+     * @return the jar the launcher is running from (or its classes folder when not run from a jar)
+     */
+    public static File getLauncherJar() {
+        File jar = null;
         try {
-            path = new File(Utilities.class.getProtectionDomain().getCodeSource().getLocation().toURI().getSchemeSpecificPart()).getParentFile();
+            jar = new File(Utilities.class.getProtectionDomain().getCodeSource().getLocation().toURI().getSchemeSpecificPart());
         } catch (URISyntaxException ex) {
             logger.error("Error: ", ex);
         }
-        return path;
+        return jar;
     }
 
     public static OS getOS() {
@@ -78,57 +78,64 @@ public class Utilities {
         return OS_arch;
     }
 
-    //thanks to Roland Illig - http://stackoverflow.com/questions/4308554/simplest-way-to-read-json-from-a-url-in-java
-    public static JSONObject readJsonFromUrl(URL url) throws IOException, JSONException {
-        InputStream is = url.openStream();
-        try {
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")));
-            JSONObject json = new JSONObject(readAll(rd));
-            return json;
-        } finally {
-            is.close();
-        }
-    }
-
-    private static String readAll(Reader rd) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int cp;
-        while ((cp = rd.read()) != -1) {
-            sb.append((char) cp);
+    /**
+     * @return where the runtime of version is in javaFolder, as laid out by the JRE archives
+     */
+    public static File getLocalJavaHome(File javaFolder, String version) {
+        if (getOS() == OS.OSX) {
+            return new File(javaFolder, "jre" + version + ".jre/Contents/Home");
         }
-        return sb.toString();
+        return new File(javaFolder, "jre" + version);
     }
 
     public static Process launchClientProcess(JavaStatus status) {
-        return launchProcess("mage.client.MageFrame", Config.getClientJavaOpts(), "mage-client", status);
+        return launchProcess("mage.client.MageFrame", Config.getClientPreset(), Config.getClientJavaOpts(), "mage-client",
+                Config.getClientJavaRuntime(), status);
     }
 
     public static Process launchServerProcess(JavaStatus status) {
-        return launchProcess("mage.server.Main", Config.getServerJavaOpts(), "mage-server", status);
+        return launchProcess("mage.server.Main", Config.getServerPreset(), Config.getServerJavaOpts(), "mage-server",
+                Config.getServerJavaRuntime(), status);
     }
 
     public static void stopProcess(Process p) {
         p.destroy();
     }
 
-    private static Process launchProcess(String main, String args, String path, JavaStatus javaStatus) {
+    /**
+     * @param runtime the key of the installed Java chosen for what is started, or "" to go by javaStatus
+     */
+    private static Process launchProcess(String main, JvmOptions.Preset preset, String args, String path, String runtime,
+            JavaStatus javaStatus) {
         File javaBin;
         File javaHome;
+        String storedVersion = null;
 
         File installPath = Utilities.getInstallPath();
-        File xmagePath = new File(installPath, "/xmage/" + path);
+        File xmagePath = new File(new File(installPath, Config.getXMageFolder()), path);
         File classPath = new File(xmagePath, "/lib/*");
 
-        if (javaStatus == JavaStatus.LocalCompatible) {
+        JavaStore store = getJavaStore();
+        String stored = null;
+        String key = javaStatus == JavaStatus.LocalCompatible ? Config.getInstalledJavaRuntime() : "";
+        if (store.contains(runtime)) {
+            key = runtime;
+        }
+        if (store.contains(key)) {
+            //If we're supposed to use a Java installed by the launcher, find the relevant paths
+            javaHome = store.getJavaHome(key);
+            storedVersion = store.getVersion(key);
+            stored = key;
+            store.markUsed(key);
+        } else if (javaStatus == JavaStatus.LocalCompatible) {
             //If we're supposed to use the local Java, find the relevant paths
-            if (getOS() == OS.OSX) {
-                javaHome = new File(installPath, "/java/jre" + Config.getInstalledJavaVersion() + ".jre/Contents/Home");
-            } else {
-                javaHome = new File(installPath, "/java/jre" + Config.getInstalledJavaVersion());
-            }
+            javaHome = getLocalJavaHome(new File(installPath, "java"), Config.getInstalledJavaVersion());
         } else if (javaStatus == JavaStatus.SystemCompatible) {
             //If we're supposed to use the system Java, find the relevant paths
             javaHome = new File(System.getProperty("java.home"));
+        } else if (javaStatus == JavaStatus.DiscoveredCompatible) {
+            //If we're supposed to use a Java found on this computer, use the one found
+            javaHome = new File(Config.getDiscoveredJavaHome());
         } else {
             logger.error("Attempting to run a process without a compatible Java installation");
             return null;
@@ -140,9 +147,29 @@ public class Utilities {
         logger.info("XMage Path: " + xmagePath.toString());
         logger.info("Class Path: " + classPath.toString());
 
+        String javaVersion = ClassDataSharing.getJavaVersion(javaHome);
+        if (javaVersion == null) {
+            if (storedVersion != null) {
+                javaVersion = storedVersion;
+            } else if (javaStatus == JavaStatus.LocalCompatible) {
+                javaVersion = Config.getInstalledJavaVersion();
+            } else if (javaStatus == JavaStatus.SystemCompatible) {
+                javaVersion = System.getProperty("java.version");
+            } else {
+                javaVersion = ""; // unknown, no options are dropped
+            }
+        }
+        JvmOptions.Hardware hardware = JvmOptions.Hardware.detect();
+        logger.info("Java version: " + javaVersion + ", hardware: " + hardware);
+
         ArrayList<String> command = new ArrayList<String>();
         command.add(javaBin.getAbsolutePath());
-        command.addAll(Arrays.asList(args.split(" ")));
+        command.addAll(JvmOptions.build(preset, args, hardware, ClassDataSharing.getMajorVersion(javaVersion)));
+        String xmageVersion = Config.getInstalledXMageVersion();
+        if (Config.isUseClassDataSharing() && xmageVersion != null) {
+            command.addAll(getClassDataSharing().getOptions(javaHome, javaVersion, Config.getXMageFolder() + "-" + path, xmageVersion,
+                    new File(xmagePath, "lib")));
+        }
         command.add("-cp");
         command.add(classPath.getAbsolutePath());
         command.add(main);
@@ -154,6 +181,9 @@ public class Utilities {
         pb.redirectErrorStream(true);
         try {
             Process p = pb.start();
+            if (stored != null) {
+                store.started(stored, p);
+            }
             return p;
         } catch (IOException ex) {
             logger.error("Error staring process", ex);
@@ -161,6 +191,27 @@ public class Utilities {
         return null;
     }
 
+    private static ClassDataSharing getClassDataSharing() {
+        return new ClassDataSharing(new File(Utilities.getInstallPath(), "cds"));
+    }
+
+    public static JavaStore getJavaStore() {
+        return new JavaStore(new File(Utilities.getInstallPath(), "java"));
+    }
+
+    /**
+     * Removes the installed Java runtimes that are neither the one installed last nor chosen for the client or server,
+     * beyond the number kept to go back to.
+     */
+    public static void cleanJavaStore() {
+        getJavaStore().clean(Arrays.asList(Config.getInstalledJavaRuntime(), Config.getClientJavaRuntime(),
+                Config.getServerJavaRuntime()), Config.getJavaRuntimesKept());
+    }
+
+    public static JavaDiscovery getJavaDiscovery() {
+        return new JavaDiscovery(new File(Utilities.getInstallPath(), "java.discovered"));
+    }
+
     public static void restart(File launcherJar) {
         File installPath = Utilities.getInstallPath();
         String javaBin = System.getProperty("java.home") + "/bin/java";
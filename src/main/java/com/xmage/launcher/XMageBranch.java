@@ -3,11 +3,14 @@ package com.xmage.launcher;
 public class XMageBranch {
     public String title;
     public String url;
+    /** the folder in the install path this branch is installed in */
+    public String folder;
 
-    public XMageBranch(String title, String url) {
+    public XMageBranch(String title, String url, String folder) {
         super();
         this.title = title;
         this.url = url;
+        this.folder = folder;
     }
 
     @Override
@@ -21,12 +21,22 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.ImageIcon;
@@ -40,6 +50,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 import javax.swing.border.Border;
@@ -47,9 +58,7 @@ import javax.swing.text.DefaultCaret;
 
 import org.apache.maven.artifact.versioning.ArtifactVersion;
 import org.apache.maven.artifact.versioning.DefaultArtifactVersion;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,6 +73,11 @@ enum JavaStatus {
      */
     LocalCompatible,
 
+    /**
+     * A Java installed on this computer outside of the launcher will run XMage
+     */
+    DiscoveredCompatible,
+
     /**
      * We need to download a new Java to run XMage
      */
@@ -73,22 +87,34 @@ enum JavaStatus {
      * Gets a JavaStatus from a list of Java version strings
      */
     public static JavaStatus getStatus(String systemJava, String requiredJava, String localJava) {
+        return getStatus(systemJava, requiredJava, localJava, "");
+    }
+
+    /**
+     * Gets a JavaStatus from a list of Java version strings, including the best Java found on this computer ("" if
+     * none)
+     */
+    public static JavaStatus getStatus(String systemJava, String requiredJava, String localJava, String discoveredJava) {
         return getStatus(
                 new DefaultArtifactVersion(systemJava),
                 new DefaultArtifactVersion(requiredJava),
-                new DefaultArtifactVersion(localJava)
+                new DefaultArtifactVersion(localJava),
+                new DefaultArtifactVersion(discoveredJava)
         );
     }
 
     /**
      * Gets a JavaStatus from a list of Java versions
      */
-    public static JavaStatus getStatus(ArtifactVersion systemJava, ArtifactVersion requiredJava, ArtifactVersion localJava) {
+    public static JavaStatus getStatus(ArtifactVersion systemJava, ArtifactVersion requiredJava, ArtifactVersion localJava,
+            ArtifactVersion discoveredJava) {
         // Work out if we can use an existing installed Java
         if (systemJava.compareTo(requiredJava) >= 0)
             return JavaStatus.SystemCompatible;
         else if (localJava.compareTo(requiredJava) >= 0)
             return JavaStatus.LocalCompatible;
+        else if (discoveredJava.compareTo(requiredJava) >= 0)
+            return JavaStatus.DiscoveredCompatible;
         else {
             return JavaStatus.Incompatible;
         }
@@ -102,6 +128,8 @@ public class XMageLauncher implements Runnable {
 
 
     private static final Logger logger = LoggerFactory.getLogger(XMageLauncher.class);
+    // user data in the xmage folder that updates never remove
+    private static final Pattern XMAGE_KEEP = Pattern.compile("images|gameLogs|backgrounds|mageclient\\.log|mageserver\\.log|.*\\.dck");
 
     private final ResourceBundle messages;
     private final Locale locale;
@@ -119,7 +147,8 @@ public class XMageLauncher implements Runnable {
     private final JButton btnCheck;
     private final JButton btnUpdate;
 
-    private JSONObject config;
+    private final ConfigCache configCache = new ConfigCache(Utilities.getInstallPath());
+    private Manifest config;
     private File path;
 
     private Point grabPoint;
@@ -129,8 +158,11 @@ public class XMageLauncher implements Runnable {
     private XMageConsole clientConsole;
 
     private JToolBar toolBar;
+    private JButton btnVerify;
 
     private JavaStatus javaStatus = JavaStatus.Incompatible;
+    // looked up with the config, since finding runtimes starts them
+    private volatile JavaLookup javaLookup = new JavaLookup(null, null, false);
 
     private boolean newXMage = false;
     private boolean noXMage = false;
@@ -409,6 +441,17 @@ public class XMageLauncher implements Runnable {
         toolBar.add(toolbarButton);
         toolBar.addSeparator();
 
+        btnVerify = new JButton("Verify Installation");
+        btnVerify.setBorder(emptyBorder);
+        btnVerify.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                handleVerify();
+            }
+        });
+        toolBar.add(btnVerify);
+        toolBar.addSeparator();
+
         toolbarButton = new JButton("About");
         toolbarButton.setBorder(emptyBorder);
         toolbarButton.addActionListener(new ActionListener() {
@@ -486,14 +529,34 @@ public class XMageLauncher implements Runnable {
     }
 
     private void handleUpdate() {
-        disableButtons();
-        if (!getConfig()) {
+        loadConfig(new Runnable() {
+            @Override
+            public void run() {
+                update();
+            }
+        });
+    }
+
+    private void update() {
+        checkXMage(true); // handle branch changes
+
+        // going back to a version that is still in the store needs no download, so offer it right away
+        String xmageAvailableVersion = config.getXMage().getVersion();
+        String ref = Config.getXMageFolder() + "-" + xmageAvailableVersion + Config.getInstallProfile().getRefSuffix();
+        if (downgradeXMage && getStore().getRef(ref) != null) {
+            int response = JOptionPane.showConfirmDialog(frame, MessageFormat.format(messages.getString("xmage.rollback.message"), xmageAvailableVersion),
+                    messages.getString("xmage.rollback.title"), JOptionPane.YES_NO_OPTION);
+            if (response == JOptionPane.YES_OPTION) {
+                UpdateTask update = new UpdateTask(progressBar, true);
+                update.execute();
+            } else {
+                enableButtons();
+            }
             return;
         }
-        checkXMage(true); // handle branch changes
 
         // If everything is fine, only ask for a force update
-        if (!noJava() && !newXMage) {
+        if (!noJava() && !newXMage && !javaLookup.isBuildPending()) {
             int response = JOptionPane.showConfirmDialog(frame, messages.getString("force.update.message"), messages.getString("force.update.title"), JOptionPane.YES_NO_OPTION);
             if (response == JOptionPane.YES_OPTION) {
                 UpdateTask update = new UpdateTask(progressBar, true);
@@ -507,13 +570,26 @@ public class XMageLauncher implements Runnable {
         }
     }
 
+    private void handleVerify() {
+        loadConfig(new Runnable() {
+            @Override
+            public void run() {
+                VerifyTask verify = new VerifyTask(progressBar);
+                verify.execute();
+            }
+        });
+    }
+
     private void handleCheckUpdates() {
-        if (getConfig()) {
-            checkUpdates();
-            if (javaStatus != JavaStatus.Incompatible && !newXMage) {
-                JOptionPane.showMessageDialog(frame, messages.getString("xmage.latest.message"), messages.getString("xmage.latest.title"), JOptionPane.INFORMATION_MESSAGE);
+        loadConfig(new Runnable() {
+            @Override
+            public void run() {
+                checkUpdates();
+                if (javaStatus != JavaStatus.Incompatible && !newXMage) {
+                    JOptionPane.showMessageDialog(frame, messages.getString("xmage.latest.message"), messages.getString("xmage.latest.title"), JOptionPane.INFORMATION_MESSAGE);
+                }
             }
-        }
+        });
     }
 
     private void checkUpdates() {
@@ -559,132 +635,239 @@ public class XMageLauncher implements Runnable {
             }
         });
 
-        SwingUtilities.invokeLater(new Runnable() {
+        loadConfig(new Runnable() {
             @Override
             public void run() {
-                if (getConfig()) {
-                    path = Utilities.getInstallPath();
-                    textArea.append(messages.getString("folder") + path.getAbsolutePath() + "\n");
-
-                    DownloadLauncherTask launcher = new DownloadLauncherTask(progressBar);
-                    launcher.execute();
+                path = Utilities.getInstallPath();
+                textArea.append(messages.getString("folder") + path.getAbsolutePath() + "\n");
+                for (XMageBranch branch : Config.getXMageBranches()) {
+                    StagedInstall.recover(new File(path, branch.folder));
                 }
+                TreeRemover.emptyTrash(path);
+
+                DownloadLauncherTask launcher = new DownloadLauncherTask(progressBar);
+                launcher.execute();
             }
         });
 
     }
 
-    private boolean getConfig() {
-        String xmageConfig = Config.getXMageHome() + "/config.json";
+    /**
+     * Reads the config off the EDT and then runs onLoaded on the EDT.  The buttons stay disabled meanwhile and are
+     * enabled again if the config can't be read.
+     */
+    private void loadConfig(final Runnable onLoaded) {
+        final String xmageConfig = Config.getXMageHome() + "/config.json";
+        textArea.append(messages.getString("readingConfig") + xmageConfig + "\n");
+        disableButtons();
 
-        try {
-            URL xmageUrl = new URL(xmageConfig);
-            textArea.append(messages.getString("readingConfig") + xmageUrl.toString() + "\n");
-            config = Utilities.readJsonFromUrl(xmageUrl);
-            return true;
-        } catch (IOException ex) {
-            logger.error("Error reading config from " + xmageConfig, ex);
-            textArea.append(messages.getString("readingConfig.error") + xmageConfig + "\n" + messages.getString("readingConfig.error.causes") + "\n");
-        } catch (JSONException ex) {
-            logger.error("Invalid config from " + xmageConfig, ex);
-            textArea.append(messages.getString("invalidConfig") + xmageConfig + "\n");
+        new SwingWorker<Manifest, Void>() {
+            @Override
+            protected Manifest doInBackground() throws IOException, JSONException {
+                Manifest manifest = Manifest.parse(configCache.fetch(new URL(xmageConfig)));
+                javaLookup = lookupJava(manifest);
+                return manifest;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    config = get();
+                    if (configCache.isOffline()) {
+                        String date = DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT, locale).format(new Date(configCache.getCacheTime()));
+                        textArea.append(MessageFormat.format(messages.getString("readingConfig.cached"), date) + "\n");
+                    }
+                    onLoaded.run();
+                    return;
+                } catch (InterruptedException ex) {
+                    logger.error("Interrupted reading config from " + xmageConfig, ex);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof JSONException) {
+                        logger.error("Invalid config from " + xmageConfig, ex.getCause());
+                        textArea.append(messages.getString("invalidConfig") + xmageConfig + "\n");
+                    } else {
+                        logger.error("Error reading config from " + xmageConfig, ex.getCause());
+                        textArea.append(messages.getString("readingConfig.error") + xmageConfig + "\n" + messages.getString("readingConfig.error.causes") + "\n");
+                    }
+                }
+                enableButtons();
+            }
+        }.execute();
+    }
+
+    /**
+     * What was found about the Java runtimes on this computer for a config.
+     */
+    private static final class JavaLookup {
+        // a runtime outside of the launcher that will run XMage, null if none or not needed
+        private final JavaDiscovery.Installation discovered;
+        // the JDK to build the runtime with, null if none or not building
+        private final File jdk;
+        // true if the runtime built from jdk is installed and used
+        private final boolean built;
+
+        private JavaLookup(JavaDiscovery.Installation discovered, File jdk, boolean built) {
+            this.discovered = discovered;
+            this.jdk = jdk;
+            this.built = built;
+        }
+
+        private boolean isBuildPending() {
+            return jdk != null && !built;
         }
-        enableButtons();
-        return false;
+    }
+
+    /**
+     * Moves a runtime installed by an earlier launcher into the store and looks for the runtimes on this computer that
+     * {@link #checkJava()} needs.  Starts processes and moves files, so must not run on the EDT.
+     */
+    private static JavaLookup lookupJava(Manifest config) {
+        String requiredJava = config.getJava().getVersion();
+        String localJava = Config.getInstalledJavaVersion();
+        if (Config.getInstalledJavaRuntime().isEmpty() && !localJava.isEmpty()) {
+            // installed by an earlier launcher, directly into the java folder
+            String key = Utilities.getJavaStore().migrate(localJava, Utilities.getOSandArch());
+            if (key != null) {
+                Config.setInstalledJavaRuntime(key);
+                Config.saveProperties();
+            }
+        }
+        boolean incompatible = JavaStatus.getStatus(System.getProperty("java.version"), requiredJava, localJava) == JavaStatus.Incompatible;
+        if (!incompatible && !Config.isBuildJavaRuntime()) {
+            return new JavaLookup(null, null, false);
+        }
+        List<JavaDiscovery.Installation> installed = Utilities.getJavaDiscovery().discover();
+        // rather than downloading Java, use one already installed elsewhere on this computer
+        JavaDiscovery.Installation discovered = incompatible ? JavaDiscovery.find(installed, requiredJava) : null;
+        File jdk = Config.isBuildJavaRuntime() ? JavaRuntimeBuilder.findJdk(requiredJava, installed) : null;
+        boolean built = false;
+        if (jdk != null) {
+            String key = JavaStore.getKey(ClassDataSharing.getJavaVersion(jdk), "jlink");
+            built = key.equals(Config.getInstalledJavaRuntime()) && Utilities.getJavaStore().contains(key);
+        }
+        return new JavaLookup(discovered, jdk, built);
     }
 
     /**
      * Sets the values of noJava and newJava in order to decide if we should download Java
      */
     private void checkJava() {
-        try {
-            // Determine the current versions of Java
-            String requiredJava = (String) config.getJSONObject("java").get("version");
-            String localJava = Config.getInstalledJavaVersion();
-            String systemJava = System.getProperty("java.version");
-
-            // Log these versions to the user
-            textArea.append(messages.getString("java.local") + (localJava.isEmpty() ? messages.getString("java.none") : localJava) + "\n");
-            textArea.append(messages.getString("java.system") + (systemJava.isEmpty() ? messages.getString("java.none") : systemJava) + "\n");
-            textArea.append(messages.getString("java.available") + requiredJava + "\n");
-
-            // Work out if our Java version is okay
-            javaStatus = JavaStatus.getStatus(systemJava, requiredJava, localJava);
-
-            // If we can't use an existing Java, prompt the user to install it locally
-            if (noJava()) {
-                if (localJava.isEmpty()) {
-                    textArea.append(messages.getString("java.none") + "\n");
-                    JOptionPane.showMessageDialog(
-                            frame,
-                            messages.getString("java.none.message"),
-                            messages.getString("java.none"),
-                            JOptionPane.INFORMATION_MESSAGE
-                    );
-                } else {
-                    textArea.append(messages.getString("java.new") + "\n");
-                    JOptionPane.showMessageDialog(
-                            frame,
-                            messages.getString("java.new.message"),
-                            messages.getString("java.new"),
-                            JOptionPane.INFORMATION_MESSAGE
-                    );
-                }
+        // Determine the current versions of Java
+        String requiredJava = config.getJava().getVersion();
+        String localJava = Config.getInstalledJavaVersion();
+        String systemJava = System.getProperty("java.version");
+        JavaLookup lookup = javaLookup;
+
+        // Log these versions to the user
+        textArea.append(messages.getString("java.local") + (localJava.isEmpty() ? messages.getString("java.none") : localJava) + "\n");
+        textArea.append(messages.getString("java.system") + (systemJava.isEmpty() ? messages.getString("java.none") : systemJava) + "\n");
+        textArea.append(messages.getString("java.available") + requiredJava + "\n");
+
+        // Work out if our Java version is okay
+        javaStatus = JavaStatus.getStatus(systemJava, requiredJava, localJava);
+        if (noJava() && lookup.discovered != null) {
+            textArea.append(messages.getString("java.discovered") + lookup.discovered + "\n");
+            javaStatus = JavaStatus.getStatus(systemJava, requiredJava, localJava, lookup.discovered.getVersion());
+            Config.setDiscoveredJavaHome(lookup.discovered.getHome().getAbsolutePath());
+            Config.saveProperties();
+        }
+        if (lookup.built) {
+            // use the runtime built from the JDK, over the system Java too
+            javaStatus = JavaStatus.LocalCompatible;
+        } else if (lookup.isBuildPending()) {
+            // until then the Java found above is used, if any
+            textArea.append(MessageFormat.format(messages.getString("java.jlink.pending"), lookup.jdk.getAbsolutePath()) + "\n");
+        }
+
+        // If we can't use an existing Java, prompt the user to install it locally
+        if (noJava()) {
+            if (localJava.isEmpty()) {
+                textArea.append(messages.getString("java.none") + "\n");
+                JOptionPane.showMessageDialog(
+                        frame,
+                        messages.getString("java.none.message"),
+                        messages.getString("java.none"),
+                        JOptionPane.INFORMATION_MESSAGE
+                );
+            } else {
+                textArea.append(messages.getString("java.new") + "\n");
+                JOptionPane.showMessageDialog(
+                        frame,
+                        messages.getString("java.new.message"),
+                        messages.getString("java.new"),
+                        JOptionPane.INFORMATION_MESSAGE
+                );
             }
-        } catch (JSONException ex) {
-            logger.error("Error: ", ex);
         }
     }
 
     private void checkXMage(boolean silent) {
-        try {
-            String xmageAvailableVersion = (String) config.getJSONObject("XMage").get(("version"));
-            String xmageInstalledVersion = Config.getInstalledXMageVersion();
-            textArea.append(messages.getString("xmage.installed") + xmageInstalledVersion + "\n");
-            textArea.append(messages.getString("xmage.available") + xmageAvailableVersion + "\n");
-            noXMage = false;
-            newXMage = false;
-            downgradeXMage = false;
-            int compared = compareVersions(xmageAvailableVersion, xmageInstalledVersion);
-            if (compared > 0) {
-                newXMage = true;
-                String xmageMessage = "";
-                String xmageTitle = "";
-                if (xmageInstalledVersion.isEmpty()) {
-                    noXMage = true;
-                    textArea.append(messages.getString("xmage.none") + "\n");
-                    xmageMessage = messages.getString("xmage.none.message");
-                    xmageTitle = messages.getString("xmage.none");
-                } else {
-                    textArea.append(messages.getString("xmage.new") + "\n");
-                    xmageMessage = messages.getString("xmage.new.message");
-                    xmageTitle = messages.getString("xmage.new");
-                }
-                if (!silent && !noJava() && !noXMage) {
-                    JOptionPane.showMessageDialog(frame, xmageMessage, xmageTitle, JOptionPane.INFORMATION_MESSAGE);
-                }
+        String xmageAvailableVersion = config.getXMage().getVersion();
+        String xmageInstalledVersion = Config.getInstalledXMageVersion();
+        textArea.append(messages.getString("xmage.installed") + xmageInstalledVersion + "\n");
+        textArea.append(messages.getString("xmage.available") + xmageAvailableVersion + "\n");
+        noXMage = false;
+        newXMage = false;
+        downgradeXMage = false;
+        int compared = compareVersions(xmageAvailableVersion, xmageInstalledVersion);
+        if (compared > 0) {
+            newXMage = true;
+            String xmageMessage = "";
+            String xmageTitle = "";
+            if (xmageInstalledVersion.isEmpty()) {
+                noXMage = true;
+                textArea.append(messages.getString("xmage.none") + "\n");
+                xmageMessage = messages.getString("xmage.none.message");
+                xmageTitle = messages.getString("xmage.none");
+            } else {
+                textArea.append(messages.getString("xmage.new") + "\n");
+                xmageMessage = messages.getString("xmage.new.message");
+                xmageTitle = messages.getString("xmage.new");
             }
-            if (compared < 0) { // handle downgrade
-                downgradeXMage = true;
+            if (!silent && !noJava() && !noXMage) {
+                JOptionPane.showMessageDialog(frame, xmageMessage, xmageTitle, JOptionPane.INFORMATION_MESSAGE);
+            }
+        }
+        if (compared < 0) { // handle downgrade
+            downgradeXMage = true;
+        }
+        if (compared == 0 && !xmageInstalledVersion.isEmpty()
+                && !Config.getInstallProfile().isInstalledIn(new File(path, Config.getXMageFolder()))) {
+            // the install profile changed to one with a part that isn't installed yet
+            newXMage = true;
+            textArea.append(messages.getString("xmage.profile.missing") + "\n");
+            if (!silent && !noJava()) {
+                JOptionPane.showMessageDialog(frame, messages.getString("xmage.profile.missing.message"),
+                        messages.getString("xmage.profile.missing"), JOptionPane.INFORMATION_MESSAGE);
             }
-        } catch (JSONException ex) {
-            logger.error("Error: ", ex);
         }
     }
 
     private void enableButtons() {
         if (!noJava() && !noXMage) {
-            btnLaunchClient.setEnabled(true);
-            btnLaunchClient.setForeground(Color.BLACK);
-            btnLaunchClientServer.setEnabled(true);
-            btnLaunchClientServer.setForeground(Color.BLACK);
-            btnLaunchServer.setEnabled(true);
-            btnLaunchServer.setForeground(Color.BLACK);
+            // only the parts that are there, which may be fewer than the profile has until the next update
+            File xmageFolder = new File(path, Config.getXMageFolder());
+            InstallProfile profile = Config.getInstallProfile();
+            boolean client = profile != InstallProfile.SERVER && profile.hasPart(xmageFolder, "mage-client/");
+            boolean server = profile != InstallProfile.CLIENT && profile.hasPart(xmageFolder, "mage-server/");
+            if (client) {
+                btnLaunchClient.setEnabled(true);
+                btnLaunchClient.setForeground(Color.BLACK);
+            }
+            if (client && server) {
+                btnLaunchClientServer.setEnabled(true);
+                btnLaunchClientServer.setForeground(Color.BLACK);
+            }
+            if (server) {
+                btnLaunchServer.setEnabled(true);
+                btnLaunchServer.setForeground(Color.BLACK);
+            }
         }
         btnUpdate.setEnabled(true);
         btnUpdate.setForeground(Color.BLACK);
         btnCheck.setEnabled(true);
         btnCheck.setForeground(Color.BLACK);
+        btnVerify.setEnabled(true);
     }
 
     private void disableButtons() {
@@ -698,6 +881,7 @@ public class XMageLauncher implements Runnable {
         btnUpdate.setForeground(Color.GRAY);
         btnCheck.setEnabled(false);
         btnCheck.setForeground(Color.GRAY);
+        btnVerify.setEnabled(false);
     }
 
     private class DownloadLauncherTask extends DownloadTask {
@@ -710,7 +894,7 @@ public class XMageLauncher implements Runnable {
         protected Void doInBackground() {
             try {
                 File launcherFolder = new File(path.getAbsolutePath());
-                String launcherAvailableVersion = (String) config.getJSONObject("XMage").getJSONObject("Launcher").get(("version"));
+                String launcherAvailableVersion = config.getLauncher().getVersion();
                 String launcherInstalledVersion = Config.getVersion();
                 publish(messages.getString("xmage.launcher.installed") + launcherInstalledVersion + "\n");
                 publish(messages.getString("xmage.launcher.available") + launcherAvailableVersion + "\n");
@@ -724,11 +908,17 @@ public class XMageLauncher implements Runnable {
                             "<html>" + launcherMessage + "  " + messages.getString("installNow") + "</html>", launcherTitle,
                             JOptionPane.YES_NO_OPTION);
                     if (response == JOptionPane.YES_OPTION) {
-                        String launcherRemoteLocation = (String) config.getJSONObject("XMage").getJSONObject("Launcher").get(("location"));
+                        String launcherRemoteLocation = config.getLauncher().getLocation();
                         URL launcher = new URL(launcherRemoteLocation);
                         publish(messages.getString("xmage.launcher.downloading") + launcher.toString() + "\n");
 
-                        download(launcher, path.getAbsolutePath(), "");
+                        File launcherJar = Utilities.getLauncherJar();
+                        if (!downloadPatched(launcherJar, config.getLauncher().getPatches(), config.getLauncher().getSha256(),
+                                new File(path, "xmage.dl"), "")
+                                && !download(launcher, path.getAbsolutePath(), "", config.getLauncher().getSha256())) {
+                            publish(messages.getString("download.failed") + "\n");
+                            return null;
+                        }
 
                         File from = new File(path.getAbsolutePath() + File.separator + "xmage.dl");
                         publish(messages.getString("xmage.launcher.installing"));
@@ -746,10 +936,6 @@ public class XMageLauncher implements Runnable {
                 publish(0);
                 cancel(true);
                 logger.error("Error: ", ex);
-            } catch (JSONException ex) {
-                publish(0);
-                cancel(true);
-                logger.error("Error: ", ex);
             }
             return null;
         }
@@ -776,148 +962,317 @@ public class XMageLauncher implements Runnable {
 
         @Override
         protected Void doInBackground() {
-            if (!downgradeXMage && (force || noJava())) { // only update java on force update to the same version
-                updateJava();
+            JavaLookup lookup = javaLookup;
+            File jdk = lookup.jdk;
+            if (jdk == null && !downgradeXMage && (force || noJava())) { // only update java on force update to the same version
+                updateJava(force);
             }
-            if (force || noXMage || newXMage) {
-                updateXMage();
+            boolean xmageUpdated = (force || noXMage || newXMage) && updateXMage();
+            // a runtime built for XMage is built from its jars, so after installing them
+            if (jdk != null && (force || noJava() || !lookup.built)) {
+                updateJava(force);
+            } else if (jdk != null && xmageUpdated) {
+                buildJava(jdk, false);
             }
+            javaLookup = lookupJava(config); // for checking what is installed now when done
             return null;
         }
 
-        private boolean updateJava() {
+        /**
+         * @param reinstall true to replace the runtime even if it is installed already, e.g. to repair it
+         */
+        protected boolean updateJava(boolean reinstall) {
+            if (Config.isBuildJavaRuntime()) {
+                File jdk = javaLookup.jdk;
+                if (jdk == null) {
+                    publish(messages.getString("java.jlink.nojdk") + "\n");
+                } else if (buildJava(jdk, reinstall)) {
+                    return true;
+                }
+            }
+            return downloadJava(reinstall);
+        }
+
+        /**
+         * Installs the runtime with key again, the way it was installed: built from the same JDK or downloaded for the
+         * same version and platform.  If that is no longer possible the current runtime is installed instead.
+         */
+        protected boolean repairJava(String key) {
+            String version = Utilities.getJavaStore().getVersion(key);
+            File jdk = javaLookup.jdk;
+            if (jdk != null && key.equals(JavaStore.getKey(ClassDataSharing.getJavaVersion(jdk), "jlink"))) {
+                return buildJava(jdk, true);
+            }
+            if (key.equals(JavaStore.getKey(config.getJava().getVersion(), Utilities.getOSandArch()))) {
+                return downloadJava(true);
+            }
+            logger.info("Java " + version + " (" + key + ") can't be installed again, installing the current Java instead");
+            return updateJava(true);
+        }
+
+        /**
+         * Downloads and installs the runtime of the config for this platform.
+         */
+        private boolean downloadJava(boolean reinstall) {
             try {
                 disableButtons();
-                File javaFolder = new File(path.getAbsolutePath() + File.separator + "java");
-                String javaAvailableVersion = (String) config.getJSONObject("java").get(("version"));
-                if (javaFolder.isDirectory()) { // remove existing install
-                    publish(messages.getString("removing") + "\n");
-                    removeJavaFiles(javaFolder);
+                String javaAvailableVersion = config.getJava().getVersion();
+                JavaStore store = Utilities.getJavaStore();
+                String key = JavaStore.getKey(javaAvailableVersion, Utilities.getOSandArch());
+                if (!reinstall && store.contains(key)) { // installed before, switch back to it
+                    publish(MessageFormat.format(messages.getString("java.reusing"), key) + "\n");
+                    javaInstalled(store, key, javaAvailableVersion, false);
+                    return true;
                 }
-                javaFolder.mkdirs();
-                String javaRemoteLocation = (String) config.getJSONObject("java").get(("location"));
+                File javaFolder = store.getFolder(key);
+                String javaRemoteLocation = config.getJava().getLocation();
                 URL java = new URL(javaRemoteLocation + Utilities.getOSandArch() + ".tar.gz");
                 publish(messages.getString("java.downloading") + java.toString() + "\n");
 
-                download(java, path.getAbsolutePath(), "oraclelicense=accept-securebackup-cookie");
+                File staging = new File(path.getAbsolutePath() + File.separator + "java.staging");
+                if (!downloadArchive(java, path.getAbsolutePath(), staging, false, "oraclelicense=accept-securebackup-cookie",
+                        config.getJava().getSha256(Utilities.getOSandArch()))) {
+                    publish(messages.getString("download.failed") + "\n");
+                    return false;
+                }
+                if (javaFolder.isDirectory() && !TreeRemover.moveToTrash(javaFolder)) { // replace the same version
+                    publish(messages.getString("removing") + "\n");
+                    TreeRemover.delete(javaFolder);
+                }
+                javaFolder.mkdirs();
 
                 File from = new File(path.getAbsolutePath() + File.separator + "xmage.dl");
                 publish(messages.getString("java.installing"));
 
-                extract(from, javaFolder);
+                installArchive(staging, from, javaFolder, false);
+                javaInstalled(store, key, javaAvailableVersion, true);
                 publish(messages.getString("done") + "\n");
                 publish(0);
-                if (!from.delete()) {
-                    publish(messages.getString("error.cleanup") + "\n");
-                    logger.error("Error: could not cleanup temporary files");
-                }
-                Config.setInstalledJavaVersion(javaAvailableVersion);
-                Config.saveProperties();
                 return true;
             } catch (IOException ex) {
                 publish(0);
                 cancel(true);
                 logger.error("Error: ", ex);
-            } catch (JSONException ex) {
-                publish(0);
-                cancel(true);
-                logger.error("Error: ", ex);
             }
             return false;
         }
 
-        private boolean updateXMage() {
+        /**
+         * Makes the runtime of version with key the one used, and removes those not used any more.
+         *
+         * @param fresh true if the runtime was just installed or built, so its files are recorded for verifying it
+         */
+        private void javaInstalled(JavaStore store, String key, String version, boolean fresh) {
+            if (fresh) {
+                File javaFolder = store.getFolder(key);
+                try {
+                    FileManifest.create(javaFolder, Runtime.getRuntime().availableProcessors()).write(store.getFilesRecord(key));
+                } catch (IOException ex) {
+                    logger.error("Can't record the files of " + javaFolder.getAbsolutePath(), ex);
+                }
+            }
+            store.add(key, version);
+            Config.setInstalledJavaRuntime(key);
+            Config.setInstalledJavaVersion(version);
+            Utilities.cleanJavaStore();
+            Config.saveProperties();
+        }
+
+        /**
+         * Builds Java with the modules the installed XMage uses from jdk.
+         *
+         * @param rebuild false to keep the installed runtime if it was built from jdk and has all modules needed
+         */
+        private boolean buildJava(File jdk, boolean rebuild) {
             try {
                 disableButtons();
-                File xmageFolder = new File(path.getAbsolutePath() + File.separator + "xmage");
-                String xmageAvailableVersion = (String) config.getJSONObject("XMage").get(("version"));
-                String xmageRemoteLocation;
-                String[] otherLocations = new String[0];
-                xmageRemoteLocation = (String) config.getJSONObject("XMage").get(("location"));
-                JSONArray arr = (JSONArray) config.getJSONObject("XMage").get(("locations"));
-                otherLocations = new String[arr.length()];
-                for (int i = 0; i < arr.length(); i++) {
-                    otherLocations[i] = (String) arr.get(i);
+                String version = ClassDataSharing.getJavaVersion(jdk);
+                JavaStore store = Utilities.getJavaStore();
+                String key = JavaStore.getKey(version, "jlink");
+                List<File> jars = new ArrayList<File>();
+                for (String part : new String[]{"mage-client", "mage-server"}) {
+                    File[] files = new File(new File(path, Config.getXMageFolder()), part + File.separator + "lib").listFiles();
+                    if (files != null) {
+                        for (File file : files) {
+                            if (file.getName().endsWith(".jar")) {
+                                jars.add(file);
+                            }
+                        }
+                    }
                 }
-                URL xmage = new URL(xmageRemoteLocation);
-                publish(messages.getString("xmage.downloading") + xmage.toString() + "\n");
+                publish(messages.getString("java.jlink.modules") + "\n");
+                Set<String> modules = JavaRuntimeBuilder.findModules(jdk, jars);
+                if (!rebuild && store.contains(key) && JavaRuntimeBuilder.getModules(store.getJavaHome(key)).containsAll(modules)) {
+                    publish(messages.getString("java.jlink.current") + "\n");
+                    if (!key.equals(Config.getInstalledJavaRuntime())) {
+                        javaInstalled(store, key, version, false);
+                    }
+                    return true;
+                }
+                publish(messages.getString("java.jlink.building") + modules + "\n");
+                File staging = new File(path, "java.staging");
+                if (staging.exists()) {
+                    TreeRemover.delete(staging);
+                }
+                JavaRuntimeBuilder.build(jdk, modules, Utilities.getLocalJavaHome(staging, version));
+                File javaFolder = store.getFolder(key);
+                if (javaFolder.isDirectory() && !TreeRemover.moveToTrash(javaFolder)) { // replace the same version
+                    publish(messages.getString("removing") + "\n");
+                    TreeRemover.delete(javaFolder);
+                }
+                javaFolder.getParentFile().mkdirs();
+                Files.move(staging.toPath(), javaFolder.toPath());
+                javaInstalled(store, key, version, true);
+                publish(messages.getString("done") + "\n");
+                return true;
+            } catch (IOException ex) {
+                logger.error("Can't build Java with " + jdk.getAbsolutePath(), ex);
+                publish(messages.getString("java.jlink.failed") + "\n");
+            }
+            return false;
+        }
 
-                int altCount = 0;
-                boolean result = download(xmage, path.getAbsolutePath(), "");
-                while (!result && altCount <= otherLocations.length) {
-                    publish(messages.getString("xmage.downloading.failed") + xmage.toString() + "\n");
-                    xmage = new URL(otherLocations[altCount]);
-                    altCount++;
-                    publish(messages.getString("xmage.downloading") + xmage.toString() + "\n");
-                    result = download(xmage, path.getAbsolutePath(), "");
+        private boolean updateXMage() {
+            try {
+                disableButtons();
+                File xmageFolder = new File(path, Config.getXMageFolder());
+                String xmageAvailableVersion = config.getXMage().getVersion();
+                InstallProfile profile = Config.getInstallProfile();
+                setInstallProfile(profile);
+                ArtifactStore store = getStore();
+                String ref = xmageFolder.getName() + "-" + xmageAvailableVersion + profile.getRefSuffix();
+                File deltaStaging = new File(path, xmageFolder.getName() + ".delta");
+                if (store.getRef(ref) != null && (!xmageAvailableVersion.equals(Config.getInstalledXMageVersion())
+                        || !profile.isInstalledIn(xmageFolder))) {
+                    // installed before, so all files should still be in the store
+                    publish(MessageFormat.format(messages.getString("xmage.restoring"), xmageAvailableVersion) + "\n");
+                    if (restoreFiles(xmageFolder, deltaStaging, XMAGE_KEEP, store, ref)) {
+                        return xmageInstalled(store, xmageAvailableVersion);
+                    }
+                    publish(messages.getString("xmage.restoring.failed") + "\n");
                 }
-                if (result) {
-                    if (xmageFolder.isDirectory()) { // remove existing install
-                        publish(messages.getString("removing") + "\n");
-                        removeXMageFiles(xmageFolder);
+                if (!config.getXMageFiles().isEmpty() && !noXMage && xmageFolder.isDirectory()) {
+                    // only fetch the files that differ from the installed ones
+                    URL listing = new URL(config.getXMageFiles());
+                    publish(messages.getString("xmage.updating") + listing + "\n");
+                    if (updateFiles(listing, xmageFolder, deltaStaging, XMAGE_KEEP, config.getXMage().getPatches(), store, ref, "")) {
+                        return xmageInstalled(store, xmageAvailableVersion);
                     }
-                    xmageFolder.mkdirs();
+                    publish(messages.getString("update.failed") + "\n");
+                }
+                List<URL> mirrors = new ArrayList<URL>();
+                String sha256 = config.getXMage().getSha256();
+                Manifest.Component component = profile.getComponent() == null ? null : config.getXMageComponent(profile.getComponent());
+                if (component != null) { // a smaller archive with just the selected part
+                    mirrors.add(new URL(component.getLocation()));
+                    sha256 = component.getSha256();
+                } else {
+                    for (String location : config.getXMageMirrors()) {
+                        mirrors.add(new URL(location));
+                    }
+                }
+                if (mirrors.size() == 1) { // with several mirrors the download reports the one it uses
+                    publish(messages.getString("xmage.downloading") + mirrors.get(0).toString() + "\n");
+                }
 
+                // the new version is extracted next to the installed one, which stays usable until the two are swapped
+                File staging = StagedInstall.stagingFor(xmageFolder, xmageAvailableVersion);
+                boolean result = downloadArchive(mirrors, path.getAbsolutePath(), staging, true, "", sha256);
+                if (!result) {
+                    publish(messages.getString("download.failed") + "\n");
+                }
+                if (result) {
                     File from = new File(path.getAbsolutePath() + File.separator + "xmage.dl");
 
                     publish(messages.getString("xmage.installing"));
 
-                    unzip(from, xmageFolder);
-                    publish(messages.getString("done") + "\n");
-                    publish(0);
-                    if (!from.delete()) {
-                        publish(messages.getString("error.cleanup") + "\n");
-                        logger.error("Error: could not cleanup temporary files");
-                    }
-                    Config.setInstalledXMageVersion(xmageAvailableVersion);
-                    Config.saveProperties();
-                    return true;
+                    extractArchive(staging, from, true, xmageFolder);
+                    StagedInstall.swap(staging, xmageFolder, XMAGE_KEEP);
+                    addToStore(store, xmageFolder, ref, XMAGE_KEEP, null);
+                    return xmageInstalled(store, xmageAvailableVersion);
                 }
             } catch (IOException ex) {
                 publish(0);
                 cancel(true);
                 logger.error("Error: ", ex);
-            } catch (JSONException ex) {
-                publish(0);
-                cancel(true);
-                logger.error("Error: ", ex);
             }
             return false;
         }
 
-        private void removeJavaFiles(File javaFolder) {
-            File[] files = javaFolder.listFiles();
-            for (final File file : files) {
-                if (file.isDirectory()) {
-                    removeJavaFiles(file);
-                }
-                if (!file.delete()) {
-                    logger.error("Can't remove " + file.getAbsolutePath());
-                }
-            }
+        private boolean xmageInstalled(ArtifactStore store, String version) {
+            trimStore(store);
+            publish(messages.getString("done") + "\n");
+            publish(0);
+            Config.setInstalledXMageVersion(version);
+            Config.saveProperties();
+            return true;
         }
 
-        private void removeXMageFiles(File xmageFolder) {
-            // keep images folder -- no need to make users download these again
-            File[] files = xmageFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(final File dir, final String name) {
-                    return !name.matches("images|gameLogs|backgrounds|mageclient\\.log|mageserver\\.log|.*\\.dck");
+        @Override
+        public void done() {
+            checkUpdates();
+        }
+    }
+
+    /**
+     * Checks the installed Java and XMage for missing and damaged files, and fetches only those again.  XMage is
+     * checked against the file manifest of its release if that is still the one offered, and otherwise against the
+     * copy in the store; Java against the files recorded when it was installed, and installed again if any differ.
+     */
+    private class VerifyTask extends UpdateTask {
+
+        public VerifyTask(JProgressBar progressBar) {
+            super(progressBar, false);
+        }
+
+        @Override
+        protected Void doInBackground() {
+            disableButtons();
+            JavaStore javaStore = Utilities.getJavaStore();
+            String javaKey = Config.getInstalledJavaRuntime();
+            File javaFolder = javaStore.getFolder(javaKey);
+            File javaFiles = javaStore.getFilesRecord(javaKey);
+            if (javaStore.contains(javaKey) && javaFiles.isFile()) {
+                try {
+                    if (checkFiles(javaFiles, javaFolder) > 0) {
+                        publish(messages.getString("verify.java") + "\n");
+                        repairJava(javaKey);
+                    }
+                } catch (IOException ex) {
+                    logger.error("Error: ", ex);
                 }
-            });
-            for (final File file : files) {
-                if (file.isDirectory()) {
-                    removeXMageFiles(file);
-                } else if (!file.delete()) {
-                    logger.error("Can't remove " + file.getAbsolutePath());
+            } else {
+                logger.info("No record of the files of " + javaFolder.getAbsolutePath() + ", not verifying it");
+            }
+
+            File xmageFolder = new File(path, Config.getXMageFolder());
+            String version = Config.getInstalledXMageVersion();
+            if (!xmageFolder.isDirectory() || version == null || version.isEmpty()) {
+                return null;
+            }
+            InstallProfile profile = Config.getInstallProfile();
+            setInstallProfile(profile);
+            ArtifactStore store = getStore();
+            String ref = xmageFolder.getName() + "-" + version + profile.getRefSuffix();
+            URL listing = null;
+            try {
+                if (version.equals(config.getXMage().getVersion()) && !config.getXMageFiles().isEmpty()) {
+                    listing = new URL(config.getXMageFiles());
                 }
+            } catch (MalformedURLException ex) {
+                logger.error("Error: ", ex);
             }
+            if (listing == null && store.getRef(ref) == null) {
+                publish(messages.getString("verify.unknown") + "\n");
+            } else if (verifyFiles(listing, xmageFolder, new File(path, xmageFolder.getName() + ".delta"), XMAGE_KEEP, store, ref, "")) {
+                publish(messages.getString("done") + "\n");
+            } else {
+                publish(messages.getString("verify.failed") + "\n");
+            }
+            publish(0);
+            return null;
         }
 
-        @Override
-        public void done() {
-            checkUpdates();
-        }
     }
 
     private class TorrentXMageTask extends DownloadTask {
@@ -929,19 +1284,17 @@ public class XMageLauncher implements Runnable {
         @Override
         protected Void doInBackground() {
             try {
-                File xmageFolder = new File(path.getAbsolutePath() + File.separator + "xmage");
-                String xmageAvailableVersion = (String) config.getJSONObject("XMage").get(("version"));
+                File xmageFolder = new File(path, Config.getXMageFolder());
+                String xmageAvailableVersion = config.getXMage().getVersion();
+                InstallProfile profile = Config.getInstallProfile();
+                setInstallProfile(profile);
                 String xmageRemoteLocation;
-                xmageRemoteLocation = (String) config.getJSONObject("XMage").get(("torrent"));
+                xmageRemoteLocation = config.getTorrent();
                 URL xmage = new URL(xmageRemoteLocation);
                 publish(messages.getString("xmage.downloading") + xmage.toString() + "\n");
 
                 boolean result = download(xmage, path.getAbsolutePath(), "");
                 if (result) {
-                    if (xmageFolder.isDirectory()) { // remove existing install
-                        publish(messages.getString("removing") + "\n");
-                        removeXMageFiles(xmageFolder);
-                    }
                     xmageFolder.mkdirs();
 
                     File from = new File(path.getAbsolutePath() + File.separator + "xmage.dl");
@@ -949,7 +1302,11 @@ public class XMageLauncher implements Runnable {
 
                     publish(messages.getString("xmage.installing"));
 
-                    unzip(from, xmageFolder);
+                    // extracted over the installed version, which leaves its unchanged files alone
+                    removeObsolete(xmageFolder, unzip(from, xmageFolder, xmageFolder), XMAGE_KEEP);
+                    ArtifactStore store = getStore();
+                    addToStore(store, xmageFolder, xmageFolder.getName() + "-" + xmageAvailableVersion + profile.getRefSuffix(), XMAGE_KEEP, null);
+                    trimStore(store);
                     publish(messages.getString("done") + "\n");
                     publish(0);
                     if (!from.delete()) {
@@ -963,31 +1320,10 @@ public class XMageLauncher implements Runnable {
                 publish(0);
                 cancel(true);
                 logger.error("Error: ", ex);
-            } catch (JSONException ex) {
-                publish(0);
-                cancel(true);
-                logger.error("Error: ", ex);
             }
             return null;
         }
 
-        private void removeXMageFiles(File xmageFolder) {
-            // keep images folder -- no need to make users download these again
-            File[] files = xmageFolder.listFiles(new FilenameFilter() {
-                @Override
-                public boolean accept(final File dir, final String name) {
-                    return !name.matches("images|gameLogs|backgrounds|mageclient\\.log|mageserver\\.log|.*\\.dck");
-                }
-            });
-            for (final File file : files) {
-                if (file.isDirectory()) {
-                    removeXMageFiles(file);
-                } else if (!file.delete()) {
-                    logger.error("Can't remove " + file.getAbsolutePath());
-                }
-            }
-        }
-
         @Override
         public void done() {
             enableButtons();
@@ -995,6 +1331,17 @@ public class XMageLauncher implements Runnable {
 
     }
 
+    private ArtifactStore getStore() {
+        return new ArtifactStore(new File(path, "store"));
+    }
+
+    /**
+     * Drops the XMage versions beyond the configured number and disk space from the store.
+     */
+    private static void trimStore(ArtifactStore store) {
+        store.gc(Config.getXMageVersionsKept(), Config.getStoreLimit() * 1024L * 1024L);
+    }
+
     private static int compareVersions(String ver1, String ver2) {
         DefaultArtifactVersion version1 = new DefaultArtifactVersion(ver1);
         DefaultArtifactVersion version2 = new DefaultArtifactVersion(ver2);
@@ -0,0 +1,249 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extracts a zip archive on all cores.  Zip entries are compressed independently, so once the central directory has
+ * been read every entry can be inflated on its own from a random access channel.
+ */
+public class ZipExtractor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ZipExtractor.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final ZipFile zipFile;
+    private final File to;
+    private final List<ZipArchiveEntry> files = new ArrayList<ZipArchiveEntry>();
+    private final List<IOException> errors = Collections.synchronizedList(new ArrayList<IOException>());
+    private final AtomicLong extracted = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final boolean posix;
+    private long size;
+    private File previous;
+    private CrcIndex index;
+    private ExecutorService executor;
+
+    /**
+     * Reads the central directory of archive and creates the directory tree below to.
+     */
+    public ZipExtractor(File archive, File to) throws IOException {
+        this(archive, to, InstallProfile.FULL);
+    }
+
+    /**
+     * Like {@link #ZipExtractor(File, File)}, but only extracts the entries that are part of an install with profile.
+     */
+    public ZipExtractor(File archive, File to, InstallProfile profile) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(archive.toPath(), EnumSet.of(StandardOpenOption.READ));
+        this.zipFile = new ZipFile(channel, archive.getAbsolutePath(), "UTF8", true);
+        this.to = to;
+        this.posix = Files.getFileAttributeView(to.getAbsoluteFile().getParentFile().toPath(), PosixFileAttributeView.class) != null;
+        List<ZipArchiveEntry> entries = Collections.list(zipFile.getEntriesInPhysicalOrder());
+        for (ZipArchiveEntry entry : entries) {
+            if (!profile.includes(entry.getName())) {
+                continue;
+            }
+            File destPath = new File(to, entry.getName());
+            if (entry.isDirectory()) {
+                destPath.mkdirs();
+            } else {
+                destPath.getParentFile().mkdirs();
+                files.add(entry);
+                size += entry.getSize();
+            }
+        }
+    }
+
+    /**
+     * @return the uncompressed size of all files in the archive, as listed in the central directory
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Takes the files whose size and CRC-32 match their entry from the install in previous instead of inflating them.
+     * They are left alone if previous is the folder extracted to, and hard linked (or copied) otherwise.  index holds
+     * the CRCs of previous and ends up with those of the extracted files; previous may be null to only fill the index.
+     * Must be called before {@link #start(int)}.
+     */
+    public void setUnchanged(File previous, CrcIndex index) {
+        this.previous = previous;
+        this.index = index;
+    }
+
+    /**
+     * @return the number of files taken from the previous install so far
+     */
+    public long getUnchanged() {
+        return unchanged.get();
+    }
+
+    /**
+     * @return the number of uncompressed bytes written so far
+     */
+    public long getExtracted() {
+        return extracted.get();
+    }
+
+    /**
+     * Starts extracting all files using the given number of threads.
+     */
+    public void start(int threads) {
+        logger.info("Extracting " + files.size() + " files using " + threads + " threads");
+        executor = Executors.newFixedThreadPool(threads);
+        for (final ZipArchiveEntry entry : files) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (!errors.isEmpty()) {
+                        return;
+                    }
+                    try {
+                        extract(entry);
+                    } catch (IOException ex) {
+                        errors.add(ex);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @return the paths of the files extracted, relative to the folder extracted to
+     */
+    public List<String> getPaths() {
+        List<String> paths = new ArrayList<String>(files.size());
+        for (ZipArchiveEntry entry : files) {
+            paths.add(entry.getName());
+        }
+        return paths;
+    }
+
+    /**
+     * Waits up to millis for the extraction to finish.
+     *
+     * @return true if all files have been written (or the extraction failed)
+     */
+    public boolean await(long millis) throws InterruptedException {
+        return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops any remaining work and releases the archive.
+     *
+     * @throws IOException the first error hit while extracting, if any
+     */
+    public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        zipFile.close();
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    private void extract(ZipArchiveEntry entry) throws IOException {
+        File destPath = new File(to, entry.getName());
+        if (previous != null && reuse(entry, destPath)) {
+            unchanged.incrementAndGet();
+            extracted.addAndGet(entry.getSize());
+            return;
+        }
+        byte[] data = buffers.get();
+        InputStream in = zipFile.getInputStream(entry);
+        destPath.delete(); // never write through a hard link into the store
+        FileChannel out = new FileOutputStream(destPath).getChannel();
+        try {
+            int count;
+            while ((count = in.read(data, 0, BUFFER_SIZE)) != -1) {
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                extracted.addAndGet(count);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+        if (posix && entry.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX && entry.getUnixMode() != 0) {
+            Files.setPosixFilePermissions(destPath.toPath(), getPermissions(entry.getUnixMode()));
+        }
+        if (index != null) {
+            index.put(entry.getName(), destPath, entry.getCrc());
+        }
+    }
+
+    /**
+     * Puts the file of the previous install at destPath if it has the content of entry.
+     *
+     * @return false if the entry has to be extracted
+     */
+    private boolean reuse(ZipArchiveEntry entry, File destPath) throws IOException {
+        File old = new File(previous, entry.getName());
+        if (entry.getCrc() == -1 || !old.isFile() || old.length() != entry.getSize()
+                || index.getCrc(entry.getName(), old) != entry.getCrc()) {
+            return false;
+        }
+        if (!old.equals(destPath)) {
+            Files.deleteIfExists(destPath.toPath());
+            try {
+                Files.createLink(destPath.toPath(), old.toPath());
+            } catch (UnsupportedOperationException ex) {
+                Files.copy(old.toPath(), destPath.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            } catch (IOException ex) {
+                Files.copy(old.toPath(), destPath.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts the permission bits of a unix mode, so they can be set with a single call.
+     */
+    static Set<PosixFilePermission> getPermissions(int mode) {
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        PosixFilePermission[] bits = PosixFilePermission.values(); // OWNER_READ .. OTHERS_EXECUTE, highest bit first
+        for (int i = 0; i < bits.length; i++) {
+            if ((mode & (1 << (bits.length - 1 - i))) != 0) {
+                permissions.add(bits[i]);
+            }
+        }
+        return permissions;
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArtifactStoreTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File write(File root, String path, String text) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), text.getBytes(UTF8));
+        return file;
+    }
+
+    @Test
+    public void test_addAndLink() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File install = folder.newFolder("xmage");
+        File jar = write(install, "mage-client/lib/mage-common.jar", "common");
+        write(install, "mage-client/my.dck", "deck");
+        store.add(install, "xmage-1.4.35", Pattern.compile(".*\\.dck"), null, 2);
+
+        String hash = Hashing.sha256(jar);
+        File copy = new File(folder.getRoot(), "other/mage-common.jar");
+        assertTrue(store.link(hash, copy));
+        assertEquals("common", new String(Files.readAllBytes(copy.toPath()), UTF8));
+        assertFalse(store.link(Hashing.sha256(new File(install, "mage-client/my.dck")), new File(folder.getRoot(), "other/my.dck")));
+    }
+
+    @Test
+    public void test_modifiedBlob() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File install = folder.newFolder("xmage");
+        File jar = write(install, "mage-client/lib/mage-common.jar", "common");
+        String hash = Hashing.sha256(jar);
+        store.add(install, "xmage-1.4.35", null, null, 2);
+        Files.write(store.getBlob(hash).toPath(), "changed".getBytes(UTF8));
+
+        assertFalse(store.link(hash, new File(folder.getRoot(), "other/mage-common.jar")));
+        assertFalse(store.getBlob(hash).exists());
+    }
+
+    @Test
+    public void test_copiedWhenWritable() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File install = folder.newFolder("xmage");
+        File config = write(install, "mage-server/config/config.xml", "<config/>");
+        String hash = Hashing.sha256(config);
+        store.add(install, "xmage-1.4.35", null, null, 2);
+        Files.write(config.toPath(), "<config port=\"17172\"/>".getBytes(UTF8)); // in place
+
+        File other = new File(folder.getRoot(), "other/config.xml");
+        assertTrue(store.link(hash, other));
+        assertEquals("<config/>", new String(Files.readAllBytes(other.toPath()), UTF8));
+    }
+
+    @Test
+    public void test_gc() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File install = folder.newFolder("xmage");
+        File jar = write(install, "mage-client/lib/mage-common.jar", "old");
+        String oldHash = Hashing.sha256(jar);
+        store.add(install, "xmage-1.4.34", null, null, 2);
+        new File(folder.getRoot(), "store/refs/xmage-1.4.34").setLastModified(System.currentTimeMillis() - 60000);
+
+        jar.delete();
+        jar = write(install, "mage-client/lib/mage-common.jar", "new");
+        store.add(install, "xmage-1.4.35", null, null, 2);
+        store.gc(2, Long.MAX_VALUE);
+        assertTrue(store.getBlob(oldHash).exists());
+        store.gc(1, Long.MAX_VALUE);
+        assertFalse(store.getBlob(oldHash).exists());
+        assertTrue(store.getBlob(Hashing.sha256(jar)).exists());
+    }
+
+    @Test
+    public void test_gcBudget() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File install = folder.newFolder("xmage");
+        File jar = write(install, "mage-client/lib/mage-common.jar", "older");
+        store.add(install, "xmage-1.4.34", null, null, 2);
+        new File(folder.getRoot(), "store/refs/xmage-1.4.34").setLastModified(System.currentTimeMillis() - 60000);
+
+        jar.delete();
+        write(install, "mage-client/lib/mage-common.jar", "new");
+        store.add(install, "xmage-1.4.35", null, null, 2);
+        store.gc(2, 4);
+        assertNull(store.getRef("xmage-1.4.34"));
+
+        FileManifest ref = FileManifest.parse(new InputStreamReader(new FileInputStream(store.getRef("xmage-1.4.35")), UTF8));
+        assertEquals("mage-client/lib/mage-common.jar", ref.getEntries().get(0).getPath());
+        assertEquals(3, ref.getEntries().get(0).getSize());
+    }
+
+    @Test
+    public void test_gcKeepsEachFolder() throws IOException {
+        ArtifactStore store = new ArtifactStore(folder.newFolder("store"));
+        File beta = folder.newFolder("xmage-beta");
+        File betaJar = write(beta, "mage-client/lib/mage-common.jar", "beta");
+        store.add(beta, "xmage-beta-1.4.36", null, null, 2);
+        new File(folder.getRoot(), "store/refs/xmage-beta-1.4.36").setLastModified(System.currentTimeMillis() - 60000);
+
+        File stable = folder.newFolder("xmage");
+        write(stable, "mage-client/lib/mage-common.jar", "stable");
+        store.add(stable, "xmage-1.4.35", null, null, 2);
+        store.gc(1, 0);
+        assertTrue(store.getRef("xmage-beta-1.4.36") != null);
+        assertTrue(store.getBlob(Hashing.sha256(betaJar)).exists());
+    }
+
+}
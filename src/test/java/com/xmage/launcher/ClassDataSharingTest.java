@@ -0,0 +1,60 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClassDataSharingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_majorVersion() {
+        assertEquals(8, ClassDataSharing.getMajorVersion("1.8.0_141-b15"));
+        assertEquals(11, ClassDataSharing.getMajorVersion("11.0.2"));
+        assertEquals(17, ClassDataSharing.getMajorVersion("17"));
+        assertEquals(0, ClassDataSharing.getMajorVersion(""));
+    }
+
+    @Test
+    public void test_java8() throws IOException {
+        ClassDataSharing cds = new ClassDataSharing(folder.newFolder("cds"));
+        assertTrue(cds.getOptions(folder.getRoot(), "1.8.0_141", "xmage-mage-client", "1.4.35", folder.newFolder("lib")).isEmpty());
+    }
+
+    @Test
+    public void test_archiveLifecycle() throws IOException {
+        File cdsFolder = folder.newFolder("cds");
+        File lib = folder.newFolder("lib");
+        File jar = new File(lib, "mage-common.jar");
+        jar.createNewFile();
+        jar.setLastModified(System.currentTimeMillis() - 60000);
+        File old = new File(cdsFolder, "xmage-mage-client-1.4.34-17.0.2-0.jsa");
+        old.createNewFile();
+        ClassDataSharing cds = new ClassDataSharing(cdsFolder);
+
+        List<String> options = cds.getOptions(folder.getRoot(), "17.0.2", "xmage-mage-client", "1.4.35", lib);
+        assertEquals(1, options.size());
+        assertTrue(options.get(0).startsWith("-XX:ArchiveClassesAtExit="));
+        assertFalse(old.exists());
+
+        File archive = new File(options.get(0).substring("-XX:ArchiveClassesAtExit=".length()));
+        archive.createNewFile(); // as written by the JVM on exit
+        options = cds.getOptions(folder.getRoot(), "17.0.2", "xmage-mage-client", "1.4.35", lib);
+        assertEquals("-XX:SharedArchiveFile=" + archive.getAbsolutePath(), options.get(0));
+
+        jar.setLastModified(archive.lastModified() + 60000); // e.g. repaired after the archive was written
+        options = cds.getOptions(folder.getRoot(), "17.0.2", "xmage-mage-client", "1.4.35", lib);
+        assertTrue(options.get(0).startsWith("-XX:ArchiveClassesAtExit="));
+        assertFalse(archive.exists());
+    }
+
+}
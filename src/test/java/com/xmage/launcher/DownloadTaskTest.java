@@ -0,0 +1,88 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import javax.swing.JProgressBar;
+import javax.swing.JTextArea;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadTaskTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Task extends DownloadTask {
+
+        Task() {
+            super(new JProgressBar(), new JTextArea());
+        }
+
+        @Override
+        protected Void doInBackground() {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the state of temp as if the launcher stopped after its last byte was written.
+     */
+    private static void saveCompleted(File temp, URL url) throws IOException {
+        DownloadState state = DownloadState.create(temp, url, "\"etag\"", temp.length(), 2);
+        for (DownloadState.Segment segment : state.getRemaining()) {
+            segment.position = segment.end + 1;
+        }
+        state.save();
+    }
+
+    @Test
+    public void test_completedStateLoads() throws IOException {
+        File temp = folder.newFile("xmage.dl");
+        Files.write(temp.toPath(), "downloaded".getBytes(UTF8));
+        URL url = new URL("http://127.0.0.1:1/xmage.zip");
+        saveCompleted(temp, url);
+
+        DownloadState state = DownloadState.load(temp, Collections.singletonList(url));
+        assertNotNull(state);
+        assertTrue(state.getRemaining().isEmpty());
+        assertEquals(temp.length(), state.getCommitted());
+    }
+
+    @Test
+    public void test_completedDownloadIsVerified() throws IOException {
+        File temp = folder.newFile("xmage.dl");
+        Files.write(temp.toPath(), "downloaded".getBytes(UTF8));
+        // nothing listens on the port, so the download only succeeds if it isn't fetched again
+        URL url = new URL("http://127.0.0.1:1/xmage.zip");
+        saveCompleted(temp, url);
+
+        assertTrue(new Task().download(url, folder.getRoot().getPath(), "", Hashing.sha256(temp)));
+        assertEquals("downloaded", new String(Files.readAllBytes(temp.toPath()), UTF8));
+        assertFalse(new File(folder.getRoot(), "xmage.dl.state").exists());
+    }
+
+    @Test
+    public void test_completedDownloadCorrupt() throws IOException {
+        File temp = folder.newFile("xmage.dl");
+        Files.write(temp.toPath(), "downloaded".getBytes(UTF8));
+        URL url = new URL("http://127.0.0.1:1/xmage.zip");
+        saveCompleted(temp, url);
+
+        assertFalse(new Task().download(url, folder.getRoot().getPath(), "", Hashing.sha256(folder.newFile("other"))));
+        assertFalse(temp.exists());
+        assertFalse(new File(folder.getRoot(), "xmage.dl.state").exists());
+    }
+
+}
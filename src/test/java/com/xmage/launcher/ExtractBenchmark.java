@@ -0,0 +1,100 @@
+package com.xmage.launcher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.swing.JProgressBar;
+import javax.swing.JTextArea;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+/**
+ * Measures the install time of a bundle-sized zip archive.  Not a unit test, run it by hand with
+ * <pre>java -cp ... com.xmage.launcher.ExtractBenchmark [files] [average file size in KB]</pre>
+ * The "two-pass" figure adds the size scan the launcher used to do before extracting.
+ */
+public class ExtractBenchmark {
+
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 3000;
+        int averageSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        File dir = File.createTempFile("xmage-benchmark", "");
+        dir.delete();
+        dir.mkdirs();
+        File archive = new File(dir, "bundle.zip");
+        createArchive(archive, files, averageSize * 1024);
+        System.out.println("Archive: " + files + " files, " + archive.length() / (1024 * 1024) + " MB compressed");
+
+        DownloadTask task = new DownloadTask(new JProgressBar(), new JTextArea()) {
+            @Override
+            protected Void doInBackground() {
+                return null;
+            }
+        };
+        for (int run = 0; run < RUNS; run++) {
+            File to = new File(dir, "xmage");
+
+            long start = System.nanoTime();
+            scan(archive);
+            long scanned = System.nanoTime();
+            task.unzip(archive, to);
+            long done = System.nanoTime();
+
+            System.out.println("Run " + (run + 1) + ": two-pass " + (done - start) / 1000000 + " ms, single pass " + (done - scanned) / 1000000 + " ms");
+            DownloadTask.deleteTree(to);
+        }
+        DownloadTask.deleteTree(dir);
+        System.exit(0);
+    }
+
+    /**
+     * The first pass the launcher used to make over the archive, only to sum up the entry sizes.
+     */
+    private static long scan(File archive) throws IOException {
+        ZipArchiveInputStream zipIn = new ZipArchiveInputStream(new FileInputStream(archive));
+        long size = 0;
+        ZipArchiveEntry zipEntry;
+        while ((zipEntry = zipIn.getNextZipEntry()) != null) {
+            size += zipEntry.getSize();
+        }
+        zipIn.close();
+        return size;
+    }
+
+    /**
+     * Writes an archive laid out like the XMage bundle, with files that compress about as well as class files.
+     */
+    private static void createArchive(File archive, int files, int averageSize) throws IOException {
+        Random random = new Random(42);
+        byte[] words = new byte[4096];
+        random.nextBytes(words);
+        ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(archive)));
+        try {
+            for (int i = 0; i < files; i++) {
+                String component = i % 2 == 0 ? "mage-client" : "mage-server";
+                zipOut.putArchiveEntry(new ZipArchiveEntry(component + "/lib/file" + i + ".jar"));
+                int size = random.nextInt(averageSize * 2);
+                byte[] data = new byte[size];
+                for (int pos = 0; pos < size; pos += 16) {
+                    int offset = random.nextInt(64) * 16;
+                    System.arraycopy(words, offset, data, pos, Math.min(16, size - pos));
+                    if (random.nextInt(4) == 0) {
+                        data[pos] = (byte) random.nextInt();
+                    }
+                }
+                zipOut.write(data);
+                zipOut.closeArchiveEntry();
+            }
+        } finally {
+            zipOut.close();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileManifestTest {
+
+    private static final String HASH = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_parse() throws IOException {
+        FileManifest manifest = FileManifest.parse(new StringReader("# XMage 1.4.35\n"
+                + HASH + " 4 mage-client/lib/mage-common.jar\n"
+                + "\n"
+                + HASH.toUpperCase() + "  4  mage-client/start client.sh\n"));
+        assertEquals(2, manifest.getEntries().size());
+        FileManifest.Entry entry = manifest.getEntries().get(1);
+        assertEquals("mage-client/start client.sh", entry.getPath());
+        assertEquals(4, entry.getSize());
+        assertEquals(HASH, entry.getSha256());
+    }
+
+    @Test
+    public void test_filter() throws IOException {
+        FileManifest manifest = FileManifest.parse(new StringReader(HASH + " 4 mage-client/lib/mage-common.jar\n"
+                + HASH + " 4 mage-server/lib/mage-common.jar\n"
+                + HASH + " 4 readme.txt\n"));
+        assertEquals(3, manifest.filter(InstallProfile.FULL).getEntries().size());
+        FileManifest server = manifest.filter(InstallProfile.SERVER);
+        assertEquals(2, server.getEntries().size());
+        assertEquals("mage-server/lib/mage-common.jar", server.getEntries().get(0).getPath());
+        assertEquals("readme.txt", manifest.filter(InstallProfile.CLIENT).getEntries().get(1).getPath());
+    }
+
+    @Test
+    public void test_createAndWrite() throws IOException {
+        File java = folder.newFolder("java");
+        new File(java, "bin").mkdirs();
+        Files.write(new File(java, "bin/test").toPath(), "test".getBytes("UTF-8"));
+        File listing = new File(folder.getRoot(), "java.files");
+        FileManifest.create(java, 2).write(listing);
+
+        FileManifest manifest = FileManifest.parse(new InputStreamReader(new FileInputStream(listing), "UTF-8"));
+        assertEquals(1, manifest.getEntries().size());
+        assertEquals("bin/test", manifest.getEntries().get(0).getPath());
+        assertEquals(4, manifest.getEntries().get(0).getSize());
+        assertEquals(HASH, manifest.getEntries().get(0).getSha256());
+    }
+
+    @Test(expected = IOException.class)
+    public void test_outsideFolder() throws IOException {
+        FileManifest.parse(new StringReader(HASH + " 4 mage-client/../../XMageLauncher.jar\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void test_invalidSize() throws IOException {
+        FileManifest.parse(new StringReader(HASH + " four mage-client/lib/mage-common.jar\n"));
+    }
+
+}
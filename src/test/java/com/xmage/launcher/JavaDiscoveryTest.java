@@ -0,0 +1,64 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class JavaDiscoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_probeCached() throws IOException {
+        Assume.assumeTrue(Utilities.getOS() != Utilities.OS.WIN);
+        File probes = new File(folder.getRoot(), "probes");
+        File jdk8 = newJavaHome("jdk8", "1.8.0_141", probes);
+        File jdk11 = newJavaHome("jdk11", "11.0.2", probes);
+        File broken = folder.newFolder("broken");
+        new File(broken, "bin").mkdir();
+        new File(broken, "bin/java").createNewFile(); // not executable
+        Set<File> candidates = new LinkedHashSet<File>(Arrays.asList(broken, jdk8, jdk11));
+        File cache = new File(folder.getRoot(), "java.discovered");
+
+        List<JavaDiscovery.Installation> found = new JavaDiscovery(cache).discover(candidates);
+        assertEquals(2, found.size());
+        assertEquals("11.0.2", found.get(0).getVersion());
+        assertEquals("amd64", found.get(0).getArch());
+        assertEquals(2, Files.readAllLines(probes.toPath(), Charset.forName("UTF-8")).size());
+
+        new File(jdk8, "bin/java").setLastModified(System.currentTimeMillis() + 60000); // updated in place
+        found = new JavaDiscovery(cache).discover(candidates);
+        assertEquals(2, found.size());
+        assertEquals(3, Files.readAllLines(probes.toPath(), Charset.forName("UTF-8")).size());
+    }
+
+    private File newJavaHome(String name, String version, File probes) throws IOException {
+        File javaHome = folder.newFolder(name);
+        new File(javaHome, "bin").mkdir();
+        File java = new File(javaHome, "bin/java");
+        Writer out = new FileWriter(java);
+        out.write("#!/bin/sh\n"
+                + "echo " + name + " >> '" + probes.getAbsolutePath() + "'\n"
+                + "echo 'Property settings:' >&2\n"
+                + "echo '    java.version = " + version + "' >&2\n"
+                + "echo '    os.arch = amd64' >&2\n");
+        out.close();
+        java.setExecutable(true);
+        return javaHome;
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JavaRuntimeBuilderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_parseModules() {
+        Set<String> modules = JavaRuntimeBuilder.parseModules(
+                "Warning: split package: javax.annotation\n"
+                + "java.base,java.desktop,java.sql,jdk.unsupported\n");
+        assertEquals(4, modules.size());
+        assertTrue(modules.contains("java.desktop"));
+        assertTrue(JavaRuntimeBuilder.parseModules("jdeps: no classes found\n").isEmpty());
+    }
+
+    @Test
+    public void test_findJdk() throws IOException {
+        File jre = newJavaHome("jre", "17.0.2", false);
+        File oldJdk = newJavaHome("jdk8", "1.8.0_141", true);
+        File jdk = newJavaHome("jdk17", "17.0.2", true);
+        assertEquals(jdk, JavaRuntimeBuilder.findJdk(Arrays.asList(jre, oldJdk, jdk), "1.8.0_131"));
+        assertNull(JavaRuntimeBuilder.findJdk(Arrays.asList(jre, oldJdk, jdk), "21"));
+    }
+
+    @Test
+    public void test_getModules() throws IOException {
+        File javaHome = newJavaHome("jlinked", "17.0.2", false);
+        Writer out = new FileWriter(new File(javaHome, "release"), true);
+        out.write("MODULES=\"java.base java.datatransfer java.desktop\"\n");
+        out.close();
+        Set<String> modules = JavaRuntimeBuilder.getModules(javaHome);
+        assertTrue(modules.containsAll(Arrays.asList("java.base", "java.desktop")));
+        assertFalse(modules.contains("java.sql"));
+    }
+
+    private File newJavaHome(String name, String version, boolean jdk) throws IOException {
+        File javaHome = folder.newFolder(name);
+        Writer out = new FileWriter(new File(javaHome, "release"));
+        out.write("JAVA_VERSION=\"" + version + "\"\n");
+        out.close();
+        new File(javaHome, "bin").mkdir();
+        new File(javaHome, "bin/java").createNewFile();
+        if (jdk) {
+            new File(javaHome, "bin/jlink").createNewFile();
+            new File(javaHome, "bin/jdeps").createNewFile();
+            new File(javaHome, "jmods").mkdir();
+        }
+        return javaHome;
+    }
+
+}
@@ -50,4 +50,26 @@ public class JavaStatusTest {
         ) == JavaStatus.LocalCompatible);
     }
 
+    @Test
+    public void test_discovered() {
+        assertTrue(JavaStatus.getStatus(
+                "1.7.0_65", //We should use a Java found on this computer if our system Java is 1.7,
+                "1.8.0_131", //we need a new 1.8,
+                "1.8.0_11", //our local Java is too old, and
+                "11.0.2" //a newer one is installed elsewhere
+        ) == JavaStatus.DiscoveredCompatible);
+        assertTrue(JavaStatus.getStatus(
+                "1.7.0_65", //We should prefer our local Java
+                "1.8.0_131",
+                "1.8.0_131",
+                "11.0.2"
+        ) == JavaStatus.LocalCompatible);
+        assertTrue(JavaStatus.getStatus(
+                "1.7.0_65", //We should still download if nothing found will do
+                "1.8.0_131",
+                "",
+                ""
+        ) == JavaStatus.Incompatible);
+    }
+
 }
\ No newline at end of file
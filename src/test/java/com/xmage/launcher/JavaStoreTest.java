@@ -0,0 +1,118 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JavaStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_migrate() throws IOException {
+        File javaFolder = folder.newFolder("java");
+        File legacy = new File(javaFolder, "jre1.8.0_141");
+        new File(legacy, "bin").mkdirs();
+        JavaStore store = new JavaStore(javaFolder);
+
+        String key = store.migrate("1.8.0_141", "linux-x64");
+        assertEquals("1.8.0_141-linux-x64", key);
+        assertFalse(legacy.exists());
+        assertTrue(new File(store.getFolder(key), "jre1.8.0_141/bin").isDirectory());
+        assertTrue(new JavaStore(javaFolder).contains(key));
+        assertEquals("1.8.0_141", new JavaStore(javaFolder).getVersion(key));
+    }
+
+    @Test
+    public void test_clean() throws IOException {
+        File javaFolder = folder.newFolder("java");
+        JavaStore store = new JavaStore(javaFolder);
+        for (String version : new String[]{"1.8.0_131", "1.8.0_141", "11.0.2", "17.0.2"}) {
+            String key = JavaStore.getKey(version, "linux-x64");
+            store.getFolder(key).mkdirs();
+            store.add(key, version);
+        }
+        assertEquals(Arrays.asList("17.0.2-linux-x64", "11.0.2-linux-x64", "1.8.0_141-linux-x64", "1.8.0_131-linux-x64"), store.getKeys());
+        store.markUsed("1.8.0_141-linux-x64");
+
+        // the latest for both client and server, the oldest for the server
+        List<String> removed = store.clean(Arrays.asList("17.0.2-linux-x64", "17.0.2-linux-x64", "1.8.0_131-linux-x64"), 1);
+        assertEquals(Arrays.asList("11.0.2-linux-x64"), removed);
+        assertFalse(store.getFolder("11.0.2-linux-x64").exists());
+        assertEquals(3, new JavaStore(javaFolder).getKeys().size());
+
+        removed = store.clean(Arrays.asList("17.0.2-linux-x64", ""), 0);
+        assertEquals(2, removed.size());
+        assertEquals(Arrays.asList("17.0.2-linux-x64"), new JavaStore(javaFolder).getKeys());
+    }
+
+    @Test
+    public void test_cleanKeepsRunning() throws IOException {
+        File javaFolder = folder.newFolder("java");
+        JavaStore store = new JavaStore(javaFolder);
+        for (String version : new String[]{"11.0.2", "17.0.2"}) {
+            String key = JavaStore.getKey(version, "linux-x64");
+            store.getFolder(key).mkdirs();
+            store.add(key, version);
+        }
+        FakeProcess process = new FakeProcess();
+        new JavaStore(javaFolder).started("11.0.2-linux-x64", process);
+
+        assertTrue(store.clean(Arrays.asList("17.0.2-linux-x64"), 0).isEmpty());
+        assertTrue(store.getFolder("11.0.2-linux-x64").isDirectory());
+
+        process.exited = true;
+        assertFalse(store.isRunning("11.0.2-linux-x64"));
+        assertEquals(Arrays.asList("11.0.2-linux-x64"), store.clean(Arrays.asList("17.0.2-linux-x64"), 0));
+    }
+
+    private static class FakeProcess extends Process {
+
+        private volatile boolean exited;
+
+        @Override
+        public OutputStream getOutputStream() {
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return null;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return null;
+        }
+
+        @Override
+        public int waitFor() {
+            return 0;
+        }
+
+        @Override
+        public int exitValue() {
+            if (!exited) {
+                throw new IllegalThreadStateException();
+            }
+            return 0;
+        }
+
+        @Override
+        public void destroy() {
+            exited = true;
+        }
+    }
+
+}
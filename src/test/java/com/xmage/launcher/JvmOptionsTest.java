@@ -0,0 +1,61 @@
+package com.xmage.launcher;
+
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JvmOptionsTest {
+
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    @Test
+    public void test_serverHeap() {
+        List<String> options = JvmOptions.pick(JvmOptions.Preset.SERVER, new JvmOptions.Hardware(16 * GB, 8), 17);
+        assertTrue(options.contains("-Xmx8192m"));
+        assertTrue(options.contains("-Xms8192m"));
+        assertTrue(options.contains("-XX:+UseParallelGC"));
+        options = JvmOptions.pick(JvmOptions.Preset.SERVER, new JvmOptions.Hardware(GB, 1), 17);
+        assertTrue(options.contains("-Xmx1024m"));
+        assertTrue(options.contains("-XX:+UseSerialGC"));
+    }
+
+    @Test
+    public void test_clientHeap() {
+        List<String> options = JvmOptions.pick(JvmOptions.Preset.CLIENT, new JvmOptions.Hardware(16 * GB, 8), 8);
+        assertTrue(options.contains("-Xmx2048m"));
+        assertTrue(options.contains("-XX:+UseG1GC"));
+        assertTrue(options.contains("-XX:MetaspaceSize=128m"));
+        options = JvmOptions.pick(JvmOptions.Preset.CLIENT, new JvmOptions.Hardware(2 * GB, 2), 7);
+        assertTrue(options.contains("-Xmx512m"));
+        assertTrue(options.contains("-XX:MaxPermSize=384m"));
+    }
+
+    @Test
+    public void test_userOptionsWin() {
+        List<String> options = JvmOptions.build(JvmOptions.Preset.CLIENT, " -Xmx3g  -XX:+UseZGC ", new JvmOptions.Hardware(16 * GB, 8), 17);
+        assertFalse(options.contains("-Xmx2048m"));
+        assertFalse(options.contains("-XX:+UseG1GC"));
+        assertTrue(options.contains("-Xmx3g"));
+        assertTrue(options.contains("-XX:+UseZGC"));
+        assertTrue(options.contains("-Xms256m"));
+    }
+
+    @Test
+    public void test_unsupportedDropped() {
+        String old = "-Xms256m -Xmx512m -XX:MaxPermSize=384m -XX:+UseConcMarkSweepGC -XX:+CMSClassUnloadingEnabled";
+        List<String> options = JvmOptions.build(JvmOptions.Preset.CLIENT, old, new JvmOptions.Hardware(16 * GB, 8), 17);
+        assertFalse(options.contains("-XX:MaxPermSize=384m"));
+        assertFalse(options.contains("-XX:+UseConcMarkSweepGC"));
+        assertFalse(options.contains("-XX:+CMSClassUnloadingEnabled"));
+        assertTrue(options.contains("-Xmx512m"));
+        assertTrue(options.contains("-XX:+UseG1GC"));
+
+        options = JvmOptions.build(JvmOptions.Preset.CLIENT, old, new JvmOptions.Hardware(16 * GB, 8), 8);
+        assertTrue(options.contains("-XX:+UseConcMarkSweepGC"));
+        assertEquals(options.size(), JvmOptions.filter(options, 0).size());
+    }
+
+}
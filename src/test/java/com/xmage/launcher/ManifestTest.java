@@ -0,0 +1,48 @@
+package com.xmage.launcher;
+
+import java.util.Arrays;
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ManifestTest {
+
+    private static final String CONFIG = "{"
+            + "\"java\": {\"version\": \"1.8.0_201\", \"location\": \"http://example.com/jre-8u201-\","
+            + "\"sha256\": {\"linux-x64\": \"ab01\", \"windows-x64\": \"cd02\"}},"
+            + "\"XMage\": {\"version\": \"1.4.35V1\", \"location\": \"http://example.com/xmage.zip\","
+            + "\"locations\": [\"http://mirror1.example.com/xmage.zip\", \"http://mirror2.example.com/xmage.zip\"],"
+            + "\"torrent\": \"http://example.com/xmage.torrent\", \"sha256\": \"ef03\","
+            + "\"Launcher\": {\"version\": \"0.3.8\", \"location\": \"http://example.com/XMageLauncher-0.3.8.jar\"}}"
+            + "}";
+
+    @Test
+    public void test_parse() {
+        Manifest manifest = Manifest.parse(CONFIG);
+        assertEquals("1.8.0_201", manifest.getJava().getVersion());
+        assertEquals("http://example.com/jre-8u201-", manifest.getJava().getLocation());
+        assertEquals("1.4.35V1", manifest.getXMage().getVersion());
+        assertEquals("0.3.8", manifest.getLauncher().getVersion());
+        assertEquals("http://example.com/XMageLauncher-0.3.8.jar", manifest.getLauncher().getLocation());
+        assertEquals(Arrays.asList("http://example.com/xmage.zip", "http://mirror1.example.com/xmage.zip", "http://mirror2.example.com/xmage.zip"),
+                manifest.getXMageMirrors());
+        assertEquals("http://example.com/xmage.torrent", manifest.getTorrent());
+        assertEquals("", manifest.getImages());
+    }
+
+    @Test
+    public void test_hashes() {
+        Manifest manifest = Manifest.parse(CONFIG);
+        assertEquals("ab01", manifest.getJava().getSha256("linux-x64"));
+        assertEquals("", manifest.getJava().getSha256("macosx-x64"));
+        assertEquals("ef03", manifest.getXMage().getSha256());
+        assertEquals("", manifest.getLauncher().getSha256());
+    }
+
+    @Test(expected = JSONException.class)
+    public void test_missingLauncher() {
+        Manifest.parse("{\"java\": {\"version\": \"1.8.0_201\", \"location\": \"\"}, \"XMage\": {\"version\": \"1.4.35\", \"location\": \"\"}}");
+    }
+
+}
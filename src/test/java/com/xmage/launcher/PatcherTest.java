@@ -0,0 +1,133 @@
+package com.xmage.launcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PatcherTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String A = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    private static final String B = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    private static final String C = "cccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccccc";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_apply() throws IOException {
+        File old = folder.newFile("old.jar");
+        FileOutputStream out = new FileOutputStream(old);
+        out.write("hello old world".getBytes(UTF8));
+        out.close();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream patch = new DataOutputStream(new GZIPOutputStream(bytes));
+        patch.writeBytes("XMPATCH1");
+        patch.write(1);
+        patch.writeLong(0);
+        patch.writeInt(6);
+        patch.write(2);
+        patch.writeInt(3);
+        patch.writeBytes("new");
+        patch.write(1);
+        patch.writeLong(9);
+        patch.writeInt(6);
+        patch.write(0);
+        patch.close();
+
+        File result = new File(folder.getRoot(), "new.jar");
+        byte[] hash = Patcher.apply(old, new ByteArrayInputStream(bytes.toByteArray()), result);
+        assertEquals("hello new world", new String(Files.readAllBytes(result.toPath()), UTF8));
+        assertEquals(Hashing.sha256(result), Hashing.toHex(hash));
+    }
+
+    @Test(expected = IOException.class)
+    public void test_copyOutsideOld() throws IOException {
+        File old = folder.newFile("old.jar");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream patch = new DataOutputStream(new GZIPOutputStream(bytes));
+        patch.writeBytes("XMPATCH1");
+        patch.write(1);
+        patch.writeLong(0);
+        patch.writeInt(10);
+        patch.write(0);
+        patch.close();
+        Patcher.apply(old, new ByteArrayInputStream(bytes.toByteArray()), new File(folder.getRoot(), "new.jar"));
+    }
+
+    @Test
+    public void test_diff() throws IOException {
+        Random random = new Random(42);
+        byte[] bytes = new byte[200000];
+        random.nextBytes(bytes);
+        File old = folder.newFile("old.jar");
+        Files.write(old.toPath(), bytes);
+        // a changed byte, an insert, a removed range and a moved range
+        ByteArrayOutputStream changed = new ByteArrayOutputStream();
+        changed.write(bytes, 150000, 20000);
+        changed.write(bytes, 0, 1000);
+        changed.write(~bytes[1000]);
+        changed.write(bytes, 1001, 49000);
+        changed.write("inserted".getBytes(UTF8));
+        changed.write(bytes, 50000, 50000);
+        changed.write(bytes, 120000, 30000);
+        changed.write(bytes, 170000, 30000);
+        File target = folder.newFile("new.jar");
+        Files.write(target.toPath(), changed.toByteArray());
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        Patcher.diff(old, target, patch);
+        assertTrue(patch.size() < 1000);
+        File result = new File(folder.getRoot(), "result.jar");
+        byte[] hash = Patcher.apply(old, new ByteArrayInputStream(patch.toByteArray()), result);
+        assertArrayEquals(changed.toByteArray(), Files.readAllBytes(result.toPath()));
+        assertEquals(Hashing.sha256(target), Hashing.toHex(hash));
+    }
+
+    @Test
+    public void test_diffFromEmpty() throws IOException {
+        File old = folder.newFile("old.jar");
+        File target = folder.newFile("new.jar");
+        Files.write(target.toPath(), "hello new world".getBytes(UTF8));
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        Patcher.diff(old, target, patch);
+        File result = new File(folder.getRoot(), "result.jar");
+        Patcher.apply(old, new ByteArrayInputStream(patch.toByteArray()), result);
+        assertEquals("hello new world", new String(Files.readAllBytes(result.toPath()), UTF8));
+    }
+
+    @Test
+    public void test_findChain() {
+        List<Manifest.Patch> patches = Manifest.parse("{\"java\": {\"version\": \"1.8.0_201\", \"location\": \"\"}, "
+                + "\"XMage\": {\"version\": \"1.4.35\", \"location\": \"\", "
+                + "\"Launcher\": {\"version\": \"0.3.8\", \"location\": \"\", \"patches\": ["
+                + "{\"from\": \"" + A + "\", \"to\": \"" + B + "\", \"location\": \"a-b\"}, "
+                + "{\"from\": \"" + B + "\", \"to\": \"" + C + "\", \"location\": \"b-c\"}, "
+                + "{\"from\": \"" + C + "\", \"to\": \"" + A + "\", \"location\": \"c-a\"}]}}}").getLauncher().getPatches();
+        List<Manifest.Patch> chain = Patcher.findChain(patches, A.toUpperCase(), C);
+        assertEquals(2, chain.size());
+        assertEquals("a-b", chain.get(0).getLocation());
+        assertEquals("b-c", chain.get(1).getLocation());
+        assertEquals(0, Patcher.findChain(patches, B, B).size());
+        assertNull(Patcher.findChain(patches, "0000", C));
+    }
+
+}
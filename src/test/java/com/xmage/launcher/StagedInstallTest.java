@@ -0,0 +1,70 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StagedInstallTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern KEEP = Pattern.compile("images|.*\\.dck");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void write(File root, String path, String text) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), text.getBytes(UTF8));
+    }
+
+    private static String read(File root, String path) throws IOException {
+        return new String(Files.readAllBytes(new File(root, path).toPath()), UTF8);
+    }
+
+    @Test
+    public void test_swap() throws IOException {
+        File live = new File(folder.getRoot(), "xmage");
+        write(live, "mage-client/lib/mage-common.jar", "old");
+        write(live, "mage-client/plugins/images/card.jpg", "card");
+        write(live, "mage-client/plugins/images/back.jpg", "old back");
+        write(live, "mage-client/my.dck", "deck");
+        File staged = StagedInstall.stagingFor(live, "1.4.35V1");
+        write(staged, "mage-client/lib/mage-common.jar", "new");
+        write(staged, "mage-client/plugins/images/back.jpg", "new back");
+
+        StagedInstall.swap(staged, live, KEEP);
+        assertFalse(staged.exists());
+        assertEquals("new", read(live, "mage-client/lib/mage-common.jar"));
+        assertEquals("card", read(live, "mage-client/plugins/images/card.jpg"));
+        assertEquals("new back", read(live, "mage-client/plugins/images/back.jpg"));
+        assertEquals("deck", read(live, "mage-client/my.dck"));
+        // a running server may still use the replaced version
+        File[] old = folder.getRoot().listFiles();
+        assertEquals(2, old.length);
+        File replaced = old[0].equals(live) ? old[1] : old[0];
+        assertTrue(replaced.getName().startsWith("xmage.old-"));
+        assertEquals("old", read(replaced, "mage-client/lib/mage-common.jar"));
+    }
+
+    @Test
+    public void test_recover() throws IOException {
+        File live = new File(folder.getRoot(), "xmage");
+        write(new File(folder.getRoot(), "xmage.old-1500000000000"), "mage-client/lib/mage-common.jar", "older");
+        write(new File(folder.getRoot(), "xmage.old-1600000000000"), "mage-client/lib/mage-common.jar", "old");
+
+        StagedInstall.recover(live);
+        assertTrue(live.isDirectory());
+        assertEquals("old", read(live, "mage-client/lib/mage-common.jar"));
+    }
+
+}
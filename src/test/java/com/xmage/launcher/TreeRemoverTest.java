@@ -0,0 +1,58 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TreeRemoverTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File create(String path) throws IOException {
+        File file = new File(folder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        file.createNewFile();
+        return file;
+    }
+
+    @Test
+    public void test_deleteKeeping() throws IOException {
+        File root = new File(folder.getRoot(), "xmage");
+        create("xmage/mage-client/lib/mage-common.jar");
+        create("xmage/mage-client/plugins/images/card.jpg");
+        create("xmage/mage-client/my.dck");
+
+        TreeRemover.delete(root, Pattern.compile("images|.*\\.dck"));
+        assertTrue(root.isDirectory());
+        assertFalse(new File(root, "mage-client/lib").exists());
+        assertTrue(new File(root, "mage-client/plugins/images/card.jpg").exists());
+        assertTrue(new File(root, "mage-client/my.dck").exists());
+    }
+
+    @Test
+    public void test_linkNotFollowed() throws IOException {
+        File outside = create("outside/keep.txt");
+        File root = new File(folder.getRoot(), "java");
+        create("java/bin/java");
+        try {
+            Files.createSymbolicLink(new File(root, "link").toPath(), outside.getParentFile().toPath());
+        } catch (UnsupportedOperationException ex) {
+            return;
+        } catch (IOException ex) {
+            return; // no symbolic links on this system
+        }
+
+        TreeRemover.delete(root);
+        assertFalse(root.exists());
+        assertTrue(outside.exists());
+    }
+
+}
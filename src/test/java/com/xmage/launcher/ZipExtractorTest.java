@@ -0,0 +1,113 @@
+package com.xmage.launcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZipExtractorTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void test_permissions() {
+        assertEquals(PosixFilePermissions.fromString("rwxr-xr-x"), ZipExtractor.getPermissions(0100755));
+        assertEquals(PosixFilePermissions.fromString("rw-r-----"), ZipExtractor.getPermissions(0640));
+    }
+
+    @Test
+    public void test_extract() throws Exception {
+        File archive = folder.newFile("bundle.zip");
+        ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(new FileOutputStream(archive));
+        for (int i = 0; i < 50; i++) {
+            zipOut.putArchiveEntry(new ZipArchiveEntry("mage-client/lib/file" + i + ".txt"));
+            zipOut.write(("content " + i).getBytes(UTF8));
+            zipOut.closeArchiveEntry();
+        }
+        ZipArchiveEntry script = new ZipArchiveEntry("mage-client/startClient.sh");
+        script.setUnixMode(0100755);
+        zipOut.putArchiveEntry(script);
+        zipOut.write("#!/bin/sh".getBytes(UTF8));
+        zipOut.closeArchiveEntry();
+        zipOut.close();
+
+        File to = folder.newFolder("xmage");
+        ZipExtractor extractor = new ZipExtractor(archive, to);
+        extractor.start(4);
+        while (!extractor.await(100)) {
+            // wait
+        }
+        extractor.close();
+
+        assertEquals(extractor.getSize(), extractor.getExtracted());
+        for (int i = 0; i < 50; i++) {
+            File file = new File(to, "mage-client/lib/file" + i + ".txt");
+            assertEquals("content " + i, new String(Files.readAllBytes(file.toPath()), UTF8));
+        }
+        File startClient = new File(to, "mage-client/startClient.sh");
+        assertTrue(startClient.isFile());
+        if (!System.getProperty("os.name").toLowerCase().contains("win")) {
+            assertTrue(Files.getPosixFilePermissions(startClient.toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+        }
+    }
+
+    private static void extract(ZipExtractor extractor) throws Exception {
+        extractor.start(2);
+        while (!extractor.await(100)) {
+            // wait
+        }
+        extractor.close();
+    }
+
+    @Test
+    public void test_unchanged() throws Exception {
+        File archive = folder.newFile("bundle.zip");
+        ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(new FileOutputStream(archive));
+        zipOut.putArchiveEntry(new ZipArchiveEntry("mage-client/lib/same.jar"));
+        zipOut.write("same".getBytes(UTF8));
+        zipOut.closeArchiveEntry();
+        zipOut.putArchiveEntry(new ZipArchiveEntry("mage-client/lib/changed.jar"));
+        zipOut.write("new!".getBytes(UTF8));
+        zipOut.closeArchiveEntry();
+        zipOut.close();
+
+        File live = folder.newFolder("xmage");
+        File same = new File(live, "mage-client/lib/same.jar");
+        same.getParentFile().mkdirs();
+        Files.write(same.toPath(), "same".getBytes(UTF8));
+        Files.write(new File(live, "mage-client/lib/changed.jar").toPath(), "old!".getBytes(UTF8));
+
+        CrcIndex index = new CrcIndex();
+        File staging = new File(folder.getRoot(), "xmage.new");
+        ZipExtractor extractor = new ZipExtractor(archive, staging);
+        extractor.setUnchanged(live, index);
+        extract(extractor);
+        assertEquals(1, extractor.getUnchanged());
+        assertTrue(Files.isSameFile(same.toPath(), new File(staging, "mage-client/lib/same.jar").toPath()));
+        File changed = new File(staging, "mage-client/lib/changed.jar");
+        assertEquals("new!", new String(Files.readAllBytes(changed.toPath()), UTF8));
+        assertFalse(Files.isSameFile(new File(live, "mage-client/lib/changed.jar").toPath(), changed.toPath()));
+
+        // extracting again in place takes everything from the index
+        index.save(CrcIndex.forFolder(staging));
+        extractor = new ZipExtractor(archive, staging);
+        extractor.setUnchanged(staging, CrcIndex.load(CrcIndex.forFolder(staging)));
+        extract(extractor);
+        assertEquals(2, extractor.getUnchanged());
+    }
+
+}